@@ -0,0 +1,141 @@
+package eu.wawr.minimalCoverage;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.SchemaException;
+import org.opengis.feature.simple.SimpleFeature;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the coverage stages on synthetic layers, one layer per combination of the
+ * parameters. Every benchmark runs over the whole layer, so its throughput is in layers per second;
+ * run with -prof gc for the allocation rate and the bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoverageBenchmark {
+
+    /** grid, random or hexagons, see SyntheticWorkloads.Named */
+    @Param({"grid"})
+    public String workload;
+
+    @Param({"100", "1000"})
+    public int count;
+
+    /** growth of every element past its cell */
+    @Param({"0.2"})
+    public double overlap;
+
+    /** fixed or layer, the precision policy of the generator */
+    @Param({"fixed"})
+    public String precision;
+
+    private OptimalCoverageGenerator generator;
+    private TopologyHelper topology;
+    private List<Geometry> geometries;
+    private List<Geometry[]> pairs;
+    private List<SimpleFeature> clippedFeatures;
+    private List<SimpleFeature> choppedFeatures;
+    private List<SimpleFeature> duplicatedFeatures;
+    private Set<String> universe;
+    private Map<String, Set<String>> subsets;
+    private Set<String> fixedKeys;
+
+    @Setup
+    public void setUp() throws SchemaException {
+        SimpleFeatureCollection elements = SyntheticWorkloads.Named(workload, count, overlap);
+        generator = new OptimalCoverageGenerator(DataUtilities.source(elements), SyntheticWorkloads.idAttribute);
+        if(precision.equals("layer")){
+            generator.SetPrecisionPolicy(PrecisionPolicy.ForLayer(
+                    elements.getSchema().getCoordinateReferenceSystem(), elements.getBounds()));
+        }
+        topology = generator.Topology();
+        clippedFeatures = generator.Clip(elements, SyntheticWorkloads.Extent(elements));
+        geometries = new ArrayList<>();
+        for(SimpleFeature feature : clippedFeatures){
+            geometries.add((Geometry)feature.getDefaultGeometry());
+        }
+        pairs = getIntersectingPairs(geometries);
+        choppedFeatures = generator.Chop(clippedFeatures);
+        duplicatedFeatures = new ArrayList<>(choppedFeatures);
+        duplicatedFeatures.addAll(choppedFeatures);
+        IntersectionsMap intersectionsMap = new IntersectionsMap(choppedFeatures, clippedFeatures, topology);
+        universe = intersectionsMap.Map().keySet();
+        subsets = intersectionsMap.Invert().Map();
+        fixedKeys = generator.GetNotFullyCoveredIds(clippedFeatures);
+    }
+
+    @Benchmark
+    public int reduce(){
+        int points = 0;
+        for(Geometry geometry : geometries){
+            points += topology.Reduce(geometry).getNumPoints();
+        }
+        return points;
+    }
+
+    @Benchmark
+    public int isCovered(){
+        int covered = 0;
+        for(Geometry[] pair : pairs){
+            covered += topology.IsCovered(pair[0], pair[1]) ? 1 : 0;
+        }
+        return covered;
+    }
+
+    @Benchmark
+    public int equal(){
+        int equal = 0;
+        for(Geometry[] pair : pairs){
+            equal += topology.Equal(pair[0], pair[1]) ? 1 : 0;
+        }
+        return equal;
+    }
+
+    @Benchmark
+    public List<SimpleFeature> chop() throws SchemaException {
+        return generator.Chop(clippedFeatures);
+    }
+
+    /** every piece twice, so that half of them are removed */
+    @Benchmark
+    public List<SimpleFeature> removeDuplicates(){
+        return generator.RemoveDuplicates(duplicatedFeatures);
+    }
+
+    /** the map of pieces to the elements covering them, inverted as the set cover needs it */
+    @Benchmark
+    public IntersectionsMap intersections() throws SchemaException {
+        return new IntersectionsMap(choppedFeatures, clippedFeatures, topology).Invert();
+    }
+
+    @Benchmark
+    public SetCoverSolution setCover(){
+        return generator.GetMinimumSetCover(universe, subsets, fixedKeys);
+    }
+
+    private static List<Geometry[]> getIntersectingPairs(List<Geometry> geometries){
+        STRtree index = new STRtree();
+        for(Geometry geometry : geometries){
+            index.insert(geometry.getEnvelopeInternal(), geometry);
+        }
+        List<Geometry[]> pairs = new ArrayList<>();
+        for(Geometry geometry : geometries){
+            for(Object candidate : index.query(geometry.getEnvelopeInternal())){
+                if(candidate != geometry){
+                    pairs.add(new Geometry[]{geometry, (Geometry)candidate});
+                }
+            }
+        }
+        return pairs;
+    }
+}
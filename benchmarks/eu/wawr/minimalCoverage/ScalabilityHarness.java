@@ -0,0 +1,520 @@
+package eu.wawr.minimalCoverage;
+
+import com.vividsolutions.jts.geom.Geometry;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FileDataStore;
+import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Runs the whole command line path, from element and range shapefiles to the cover shapefile, on
+ * synthetic layers of growing size and overlap. For every step it records the wall time of the run and
+ * of each stage, the peak heap, the collection time and the cover size, writes them to a CSV and an
+ * HTML report with the growth exponent fitted to every stage, and exits with status 1 if a step is
+ * slower or its cover larger than in a baseline CSV of an earlier run.
+ */
+public class ScalabilityHarness {
+
+    private static final String[] columns = {
+            "workload", "overlap", "count", "elements", "size", "wall_ms", "peak_heap_mb", "gc_ms"};
+    private static final String stageSuffix = "_ms";
+    // differences below this are timer and scheduling noise, whatever the tolerance
+    private static final double noiseMillis = 20;
+
+    /**
+     * Measurements of one size step.
+     */
+    private static class Step {
+        String workload;
+        double overlap;
+        int count;
+        int elements;
+        int size;
+        double wallMillis;
+        double peakHeapMegabytes;
+        long gcMillis;
+        final Map<String, Double> stageMillis = new LinkedHashMap<>();
+
+        String key(){
+            return workload + "/" + format(overlap) + "/" + count;
+        }
+    }
+
+    /**
+     * Wall time of the stages of a single run, by stage name.
+     */
+    private static class StageTimes implements CoverageMetrics {
+        final Map<String, Double> millis = new LinkedHashMap<>();
+
+        @Override
+        public synchronized void StageCompleted(StageMetrics stage){
+            Double total = millis.get(stage.Name());
+            millis.put(stage.Name(), (total == null ? 0 : total) + stage.Nanos() / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = Main.readOptions(args, 0);
+        if(options == null){
+            System.out.println("Use:");
+            System.out.println("java eu.wawr.minimalCoverage.ScalabilityHarness [options]");
+            System.out.println("Options:");
+            System.out.println("--workload grid|random|hexagons  element layout (default: grid)");
+            System.out.println("--counts <n>,<n>,...             element counts of the size steps (default: 250,500,1000,2000)");
+            System.out.println("--overlaps <f>,<f>,...           growth of every element past its cell (default: 0.2,0.5)");
+            System.out.println("--engine pairwise|arrangement    chopping engine (default: pairwise)");
+            System.out.println("--warmup <count>                 unmeasured runs of the first step beforehand (default: 1)");
+            System.out.println("--dir <path>                     where the shapefiles of every step are kept");
+            System.out.println("                                 (default: a new temporary directory)");
+            System.out.println("--report <path>                  report prefix, written to <path>.csv and <path>.html");
+            System.out.println("                                 (default: scalability)");
+            System.out.println("--baseline <csv>                 report of an earlier run to compare with");
+            System.out.println("--tolerance <fraction>           allowed slowdown against the baseline (default: 0.25)");
+            return;
+        }
+        String workload = Main.getOption(options, "workload", "grid");
+        ChoppingEngine engine = Main.readChoppingEngine(Main.getOption(options, "engine", "pairwise"));
+        File directory = options.containsKey("dir")
+                ? new File(options.get("dir"))
+                : Files.createTempDirectory("scalability").toFile();
+        String report = Main.getOption(options, "report", "scalability");
+        double tolerance = Double.parseDouble(Main.getOption(options, "tolerance", "0.25"));
+        System.out.println("Shapefiles are kept in " + directory);
+        String[] overlaps = Main.getOption(options, "overlaps", "0.2,0.5").split(",");
+        String[] counts = Main.getOption(options, "counts", "250,500,1000,2000").split(",");
+        // the first runs of a JVM are dominated by class loading and compilation
+        for(int i=0; i<Integer.parseInt(Main.getOption(options, "warmup", "1")); i++){
+            runStep(workload, Double.parseDouble(overlaps[0].trim()), Integer.parseInt(counts[0].trim()), engine,
+                    directory);
+        }
+        System.out.println(String.format("%-10s %8s %8s %8s %12s %12s %8s",
+                "workload", "overlap", "count", "size", "wall ms", "peak MB", "gc ms"));
+        List<Step> steps = new ArrayList<>();
+        for(String overlap : overlaps){
+            for(String count : counts){
+                Step step = runStep(workload, Double.parseDouble(overlap.trim()), Integer.parseInt(count.trim()),
+                        engine, directory);
+                steps.add(step);
+                System.out.println(String.format(Locale.ROOT, "%-10s %8s %8d %8d %12.1f %12.1f %8d",
+                        step.workload, format(step.overlap), step.count, step.size, step.wallMillis,
+                        step.peakHeapMegabytes, step.gcMillis));
+            }
+        }
+        List<String> stages = getStages(steps);
+        writeCsv(new File(report + ".csv"), steps, stages);
+        writeHtml(new File(report + ".html"), steps, stages);
+        System.out.println("Report written to " + report + ".csv and " + report + ".html");
+        if(options.containsKey("baseline")){
+            List<String> regressions = compare(steps, readCsv(new File(options.get("baseline"))), tolerance);
+            for(String regression : regressions){
+                System.out.println("Regression: " + regression);
+            }
+            if(!regressions.isEmpty()){
+                System.exit(1);
+            }
+            System.out.println("No regressions against " + options.get("baseline"));
+        }
+    }
+
+    /**
+     * Writes the synthetic elements and their extent as shapefiles, then covers the range from them and
+     * writes the cover, as Main does. Only the latter is measured.
+     */
+    private static Step runStep(String workload, double overlap, int count, ChoppingEngine engine, File directory)
+            throws IOException, SchemaException{
+        File stepDirectory = new File(directory, workload + "_" + format(overlap) + "_" + count);
+        if(!stepDirectory.isDirectory() && !stepDirectory.mkdirs()){
+            throw new IOException("Cannot create " + stepDirectory);
+        }
+        SimpleFeatureCollection elements = SyntheticWorkloads.Named(workload, count, overlap);
+        writeShapefile(elements, new File(stepDirectory, "elements.shp"));
+        writeShapefile(makeRange(SyntheticWorkloads.Extent(elements)), new File(stepDirectory, "range.shp"));
+
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP){
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long gcMillis = getCollectionMillis();
+        long start = System.nanoTime();
+
+        StageTimes stageTimes = new StageTimes();
+        FileDataStore elementsStore = FileDataStoreFinder.getDataStore(new File(stepDirectory, "elements.shp"));
+        FileDataStore rangeStore = FileDataStoreFinder.getDataStore(new File(stepDirectory, "range.shp"));
+        Set<String> ids;
+        long written;
+        try{
+            ElementSource elementSource = new FeatureSourceElements(elementsStore.getFeatureSource(),
+                    new File(stepDirectory, "elements.shp"));
+            OptimalCoverageGenerator generator = new OptimalCoverageGenerator(elementSource,
+                    SyntheticWorkloads.idAttribute);
+            generator.SetChoppingEngine(engine);
+            generator.SetMetrics(stageTimes);
+            Geometry range;
+            SimpleFeatureIterator iterator = rangeStore.getFeatureSource().getFeatures().features();
+            try{
+                range = (Geometry)iterator.next().getDefaultGeometry();
+            } finally {
+                iterator.close();
+            }
+            ids = generator.Generate(range);
+            long writeStart = System.nanoTime();
+            SimpleFeatureCollection features = elementSource.GetFeatures(ids);
+            SolutionWriter writer = new ShapefileSolutionWriter(new File(stepDirectory, "cover.shp"),
+                    features.getSchema(), false);
+            try{
+                writer.Write(features, null);
+                writer.Close();
+            } catch(IOException | RuntimeException e){
+                writer.Discard();
+                throw e;
+            }
+            written = writer.Count();
+            stageTimes.StageCompleted(new StageMetrics("write", System.nanoTime() - writeStart,
+                    ids.size(), written, 0, 0, 0, null));
+        } finally {
+            elementsStore.dispose();
+            rangeStore.dispose();
+        }
+
+        Step step = new Step();
+        step.wallMillis = (System.nanoTime() - start) / 1e6;
+        step.gcMillis = getCollectionMillis() - gcMillis;
+        long peakHeap = 0;
+        for(MemoryPoolMXBean pool : heapPools){
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        step.peakHeapMegabytes = peakHeap / (1024.0 * 1024);
+        step.workload = workload;
+        step.overlap = overlap;
+        step.count = count;
+        step.elements = elements.size();
+        step.size = (int)written;
+        step.stageMillis.putAll(stageTimes.millis);
+        return step;
+    }
+
+    private static SimpleFeatureCollection makeRange(Geometry extent) throws SchemaException{
+        SimpleFeatureType type = DataUtilities.createType("RANGE", "the_geom:Polygon,id:String");
+        SimpleFeature feature = SimpleFeatureBuilder.build(type, new Object[]{extent, "range"}, "range");
+        return DataUtilities.collection(feature);
+    }
+
+    private static void writeShapefile(SimpleFeatureCollection features, File file) throws IOException{
+        SolutionWriter writer = new ShapefileSolutionWriter(file, features.getSchema(), false);
+        try{
+            writer.Write(features, null);
+            writer.Close();
+        } catch(IOException | RuntimeException e){
+            writer.Discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Names of all stages seen in any step, in the order they were first seen.
+     */
+    private static List<String> getStages(List<Step> steps){
+        Set<String> stages = new LinkedHashSet<>();
+        for(Step step : steps){
+            stages.addAll(step.stageMillis.keySet());
+        }
+        return new ArrayList<>(stages);
+    }
+
+    private static void writeCsv(File file, List<Step> steps, List<String> stages) throws IOException{
+        PrintWriter writer = new PrintWriter(file, "UTF-8");
+        try{
+            StringBuilder header = new StringBuilder(String.join(",", columns));
+            for(String stage : stages){
+                header.append(",").append(stage).append(stageSuffix);
+            }
+            writer.println(header);
+            for(Step step : steps){
+                StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%.3f,%.3f,%d",
+                        step.workload, format(step.overlap), step.count, step.elements, step.size,
+                        step.wallMillis, step.peakHeapMegabytes, step.gcMillis));
+                for(String stage : stages){
+                    Double millis = step.stageMillis.get(stage);
+                    line.append(",").append(millis == null ? "" : String.format(Locale.ROOT, "%.3f", millis));
+                }
+                writer.println(line);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Steps of a CSV written by writeCsv. Stage columns are read by the names in the header, so reports
+     * with other stages can still be compared.
+     */
+    private static List<Step> readCsv(File file) throws IOException{
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        if(lines.isEmpty()){
+            throw new IOException("Empty baseline " + file);
+        }
+        List<String> header = Arrays.asList(lines.get(0).split(",", -1));
+        if(!header.subList(0, Math.min(columns.length, header.size())).equals(Arrays.asList(columns))){
+            throw new IOException("Not a scalability report: " + file);
+        }
+        List<Step> steps = new ArrayList<>();
+        for(String line : lines.subList(1, lines.size())){
+            if(line.isEmpty()){
+                continue;
+            }
+            String[] values = line.split(",", -1);
+            Step step = new Step();
+            step.workload = values[0];
+            step.overlap = Double.parseDouble(values[1]);
+            step.count = Integer.parseInt(values[2]);
+            step.elements = Integer.parseInt(values[3]);
+            step.size = Integer.parseInt(values[4]);
+            step.wallMillis = Double.parseDouble(values[5]);
+            step.peakHeapMegabytes = Double.parseDouble(values[6]);
+            step.gcMillis = Long.parseLong(values[7]);
+            for(int i=columns.length; i<header.size() && i<values.length; i++){
+                if(!values[i].isEmpty()){
+                    String stage = header.get(i);
+                    step.stageMillis.put(stage.substring(0, stage.length() - stageSuffix.length()),
+                            Double.parseDouble(values[i]));
+                }
+            }
+            steps.add(step);
+        }
+        return steps;
+    }
+
+    /**
+     * Steps that took longer than the baseline step of the same workload, overlap and count by more
+     * than the tolerance and the noise margin, or whose cover grew. Steps missing from the baseline
+     * are not compared.
+     */
+    private static List<String> compare(List<Step> steps, List<Step> baseline, double tolerance){
+        Map<String, Step> baselineSteps = new HashMap<>();
+        for(Step step : baseline){
+            baselineSteps.put(step.key(), step);
+        }
+        List<String> regressions = new ArrayList<>();
+        for(Step step : steps){
+            Step baselineStep = baselineSteps.get(step.key());
+            if(baselineStep == null){
+                continue;
+            }
+            double allowedMillis = Math.max(baselineStep.wallMillis * (1 + tolerance),
+                    baselineStep.wallMillis + noiseMillis);
+            if(step.wallMillis > allowedMillis){
+                regressions.add(String.format(Locale.ROOT, "%s took %.1f ms, baseline %.1f ms",
+                        step.key(), step.wallMillis, baselineStep.wallMillis));
+            }
+            if(step.size > baselineStep.size){
+                regressions.add(String.format(Locale.ROOT, "%s selected %d elements, baseline %d",
+                        step.key(), step.size, baselineStep.size));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Exponent b and factor a of the power law a * count^b fitted by least squares to the log-log
+     * points of the series, or null if it has fewer than two distinct counts.
+     */
+    private static double[] fitGrowth(List<Step> series, String stage){
+        List<double[]> points = new ArrayList<>();
+        for(Step step : series){
+            Double millis = stage == null ? Double.valueOf(step.wallMillis) : step.stageMillis.get(stage);
+            if(millis != null){
+                points.add(new double[]{Math.log(step.count), Math.log(Math.max(millis, 1e-3))});
+            }
+        }
+        double meanX = 0;
+        double meanY = 0;
+        for(double[] point : points){
+            meanX += point[0] / points.size();
+            meanY += point[1] / points.size();
+        }
+        double covariance = 0;
+        double variance = 0;
+        for(double[] point : points){
+            covariance += (point[0] - meanX) * (point[1] - meanY);
+            variance += (point[0] - meanX) * (point[0] - meanX);
+        }
+        if(variance == 0){
+            return null;
+        }
+        double exponent = covariance / variance;
+        return new double[]{exponent, Math.exp(meanY - exponent * meanX)};
+    }
+
+    /**
+     * Steps grouped by workload and overlap, in the order of the steps.
+     */
+    private static Map<String, List<Step>> getSeries(List<Step> steps){
+        Map<String, List<Step>> series = new LinkedHashMap<>();
+        for(Step step : steps){
+            String name = step.workload + " " + format(step.overlap);
+            if(!series.containsKey(name)){
+                series.put(name, new ArrayList<Step>());
+            }
+            series.get(name).add(step);
+        }
+        return series;
+    }
+
+    /**
+     * Report with the steps, the growth fitted to the run and to every stage of each series, with the
+     * superlinear ones highlighted, and a log-log chart of the run times.
+     */
+    private static void writeHtml(File file, List<Step> steps, List<String> stages) throws IOException{
+        Map<String, List<Step>> series = getSeries(steps);
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Scalability</title>\n")
+                .append("<style>body{font-family:sans-serif}table{border-collapse:collapse;margin:1em 0}")
+                .append("td,th{border:1px solid #ccc;padding:2px 8px;text-align:right}")
+                .append(".superlinear{background:#fdd}</style></head><body>\n");
+        html.append("<h1>Scalability</h1>\n<h2>Growth</h2>\n")
+                .append("<p>Wall time fitted as a&middot;count<sup>b</sup>; exponents above 1.5 are highlighted.</p>\n");
+        html.append("<table><tr><th>series</th><th>run</th>");
+        for(String stage : stages){
+            html.append("<th>").append(stage).append("</th>");
+        }
+        html.append("</tr>\n");
+        for(Map.Entry<String, List<Step>> entry : series.entrySet()){
+            html.append("<tr><th>").append(entry.getKey()).append("</th>");
+            html.append(growthCell(fitGrowth(entry.getValue(), null)));
+            for(String stage : stages){
+                html.append(growthCell(fitGrowth(entry.getValue(), stage)));
+            }
+            html.append("</tr>\n");
+        }
+        html.append("</table>\n");
+        html.append(chart(series));
+        html.append("<h2>Steps</h2>\n<table><tr>");
+        for(String column : columns){
+            html.append("<th>").append(column).append("</th>");
+        }
+        for(String stage : stages){
+            html.append("<th>").append(stage).append(stageSuffix).append("</th>");
+        }
+        html.append("</tr>\n");
+        for(Step step : steps){
+            html.append(String.format(Locale.ROOT,
+                    "<tr><td>%s</td><td>%s</td><td>%d</td><td>%d</td><td>%d</td><td>%.1f</td><td>%.1f</td><td>%d</td>",
+                    step.workload, format(step.overlap), step.count, step.elements, step.size,
+                    step.wallMillis, step.peakHeapMegabytes, step.gcMillis));
+            for(String stage : stages){
+                Double millis = step.stageMillis.get(stage);
+                html.append("<td>").append(millis == null ? "" : String.format(Locale.ROOT, "%.1f", millis))
+                        .append("</td>");
+            }
+            html.append("</tr>\n");
+        }
+        html.append("</table>\n</body></html>\n");
+        Files.write(file.toPath(), html.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String growthCell(double[] growth){
+        if(growth == null){
+            return "<td></td>";
+        }
+        return String.format(Locale.ROOT, "<td%s>%.3g&middot;n<sup>%.2f</sup></td>",
+                growth[0] > 1.5 ? " class=\"superlinear\"" : "", growth[1], growth[0]);
+    }
+
+    /**
+     * Log-log SVG chart of the run time of every series, with its fitted curve dashed.
+     */
+    private static String chart(Map<String, List<Step>> series){
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for(List<Step> steps : series.values()){
+            for(Step step : steps){
+                minX = Math.min(minX, Math.log10(step.count));
+                maxX = Math.max(maxX, Math.log10(step.count));
+                minY = Math.min(minY, Math.log10(Math.max(step.wallMillis, 1e-3)));
+                maxY = Math.max(maxY, Math.log10(Math.max(step.wallMillis, 1e-3)));
+            }
+        }
+        if(minX >= maxX){
+            return "";
+        }
+        if(minY >= maxY){
+            maxY = minY + 1;
+        }
+        int width = 640, height = 400, margin = 50;
+        String[] colours = {"#1f77b4", "#d62728", "#2ca02c", "#9467bd", "#ff7f0e", "#8c564b"};
+        StringBuilder svg = new StringBuilder("<h2>Run time</h2>\n");
+        svg.append(String.format(Locale.ROOT, "<svg width=\"%d\" height=\"%d\" xmlns=\"http://www.w3.org/2000/svg\">\n",
+                width, height));
+        svg.append(String.format(Locale.ROOT,
+                "<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\" fill=\"none\" stroke=\"#999\"/>\n",
+                margin, margin / 2, width - 2 * margin, height - 2 * margin));
+        svg.append(String.format(Locale.ROOT, "<text x=\"%d\" y=\"%d\" font-size=\"12\">count %.0f &ndash; %.0f (log)</text>\n",
+                margin, height - margin / 2, Math.pow(10, minX), Math.pow(10, maxX)));
+        svg.append(String.format(Locale.ROOT, "<text x=\"%d\" y=\"%d\" font-size=\"12\">wall ms %.1f &ndash; %.1f (log)</text>\n",
+                margin, margin / 2 - 8, Math.pow(10, minY), Math.pow(10, maxY)));
+        int colour = 0;
+        for(Map.Entry<String, List<Step>> entry : series.entrySet()){
+            String stroke = colours[colour % colours.length];
+            StringBuilder points = new StringBuilder();
+            for(Step step : entry.getValue()){
+                double x = margin + (Math.log10(step.count) - minX) / (maxX - minX) * (width - 2 * margin);
+                double y = height - 1.5 * margin
+                        - (Math.log10(Math.max(step.wallMillis, 1e-3)) - minY) / (maxY - minY) * (height - 2 * margin);
+                points.append(String.format(Locale.ROOT, "%.1f,%.1f ", x, y));
+                svg.append(String.format(Locale.ROOT, "<circle cx=\"%.1f\" cy=\"%.1f\" r=\"3\" fill=\"%s\"/>\n",
+                        x, y, stroke));
+            }
+            svg.append(String.format(Locale.ROOT, "<polyline points=\"%s\" fill=\"none\" stroke=\"%s\"/>\n",
+                    points.toString().trim(), stroke));
+            double[] growth = fitGrowth(entry.getValue(), null);
+            if(growth != null){
+                double[] ends = {minX, maxX};
+                StringBuilder fitted = new StringBuilder();
+                for(double end : ends){
+                    double logMillis = Math.log10(growth[1]) + growth[0] * end;
+                    double y = height - 1.5 * margin - (logMillis - minY) / (maxY - minY) * (height - 2 * margin);
+                    fitted.append(String.format(Locale.ROOT, "%.1f,%.1f ",
+                            margin + (end - minX) / (maxX - minX) * (width - 2 * margin), y));
+                }
+                svg.append(String.format(Locale.ROOT,
+                        "<polyline points=\"%s\" fill=\"none\" stroke=\"%s\" stroke-dasharray=\"4 3\"/>\n",
+                        fitted.toString().trim(), stroke));
+            }
+            svg.append(String.format(Locale.ROOT, "<text x=\"%d\" y=\"%d\" font-size=\"12\" fill=\"%s\">%s</text>\n",
+                    width - margin + 4, margin + 14 * colour, stroke, entry.getKey()));
+            colour++;
+        }
+        return svg.append("</svg>\n").toString();
+    }
+
+    private static String format(double value){
+        return String.format(Locale.ROOT, "%s", value);
+    }
+
+    private static long getCollectionMillis(){
+        long millis = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+            millis += Math.max(collector.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,134 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generated element layers for benchmarks and scalability runs. Every layer has about the requested
+ * number of polygons with an "id" attribute, laid out over cells of unit size so that the range
+ * returned by Extent covers all of them. The overlap is the fraction by which each polygon is grown
+ * past its cell.
+ */
+public class SyntheticWorkloads {
+
+    public static final String idAttribute = "id";
+
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    /**
+     * Layer of the named kind: grid, random (with seed 1) or hexagons.
+     */
+    public static SimpleFeatureCollection Named(String workload, int count, double overlap) throws SchemaException{
+        switch(workload){
+            case "grid":
+                return Grid(count, overlap);
+            case "random":
+                return RandomRectangles(count, overlap, 1);
+            case "hexagons":
+                return Hexagons(count, overlap);
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+    }
+
+    /**
+     * Squares on a regular grid.
+     */
+    public static SimpleFeatureCollection Grid(int count, double overlap) throws SchemaException{
+        int side = Side(count);
+        double size = 1 + overlap;
+        List<Geometry> geometries = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            double x = i % side - overlap / 2;
+            double y = i / side - overlap / 2;
+            geometries.add(Rectangle(x, y, size, size));
+        }
+        return MakeCollection(geometries);
+    }
+
+    /**
+     * Rectangles with random positions and sides between half a cell and overlap + 1.5 cells, within
+     * the extent a grid of the same count would have.
+     */
+    public static SimpleFeatureCollection RandomRectangles(int count, double overlap, long seed) throws SchemaException{
+        int side = Side(count);
+        Random random = new Random(seed);
+        List<Geometry> geometries = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            double width = 0.5 + random.nextDouble() * (1 + overlap);
+            double height = 0.5 + random.nextDouble() * (1 + overlap);
+            double x = random.nextDouble() * Math.max(side - width, 0);
+            double y = random.nextDouble() * Math.max(side - height, 0);
+            geometries.add(Rectangle(x, y, width, height));
+        }
+        return MakeCollection(geometries);
+    }
+
+    /**
+     * Pointy-top hexagons of a honeycomb with unit spacing, each scaled by 1 + overlap around its
+     * centre.
+     */
+    public static SimpleFeatureCollection Hexagons(int count, double overlap) throws SchemaException{
+        int side = Side(count);
+        double radius = (1 + overlap) / Math.sqrt(3);
+        double rowHeight = 1.5 / Math.sqrt(3);
+        List<Geometry> geometries = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            int row = i / side;
+            double x = i % side + (row % 2) * 0.5 + 0.5;
+            double y = row * rowHeight + radius;
+            Coordinate[] coordinates = new Coordinate[7];
+            for(int corner=0; corner<6; corner++){
+                double angle = Math.PI / 6 + corner * Math.PI / 3;
+                coordinates[corner] = new Coordinate(x + radius * Math.cos(angle), y + radius * Math.sin(angle));
+            }
+            coordinates[6] = coordinates[0];
+            geometries.add(geometryFactory.createPolygon(coordinates));
+        }
+        return MakeCollection(geometries);
+    }
+
+    /**
+     * Envelope of the whole layer, to be used as the range.
+     */
+    public static Geometry Extent(SimpleFeatureCollection features){
+        return geometryFactory.toGeometry(features.getBounds());
+    }
+
+    private static int Side(int count){
+        return Math.max(1, (int)Math.ceil(Math.sqrt(count)));
+    }
+
+    private static Polygon Rectangle(double x, double y, double width, double height){
+        return geometryFactory.createPolygon(new Coordinate[]{
+                new Coordinate(x, y),
+                new Coordinate(x + width, y),
+                new Coordinate(x + width, y + height),
+                new Coordinate(x, y + height),
+                new Coordinate(x, y)});
+    }
+
+    private static SimpleFeatureCollection MakeCollection(List<Geometry> geometries) throws SchemaException{
+        SimpleFeatureType type = DataUtilities.createType("ELEMENT", "the_geom:Polygon," + idAttribute + ":String");
+        List<SimpleFeature> features = new ArrayList<>();
+        for(int i=0; i<geometries.size(); i++){
+            String id = "e" + i;
+            features.add(SimpleFeatureBuilder.build(type, new Object[]{geometries.get(i), id}, id));
+        }
+        return new ListFeatureCollection(type, features);
+    }
+}
@@ -0,0 +1,191 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Elements of another source, read for concurrent range queries in batches. The first query of a batch
+ * waits for the queries arriving within the batch window, then reads the elements in the union of
+ * their envelopes with a single query and reduces each of them once. Every query of the batch takes
+ * the elements intersecting its range from an index over these shared features, in the order of the
+ * source, so it gets the same elements as from the source itself. Queries by id go straight to the
+ * source.
+ */
+class BatchedElements implements ElementSource {
+
+    private final ElementSource elements;
+    private final TopologyHelper topology;
+    private final long windowMillis;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong queryCount = new AtomicLong();
+    private Batch openBatch;
+
+    private static class Batch {
+        final List<Geometry> ranges = new ArrayList<>();
+        final CompletableFuture<Candidates> candidates = new CompletableFuture<>();
+    }
+
+    private static class Candidates {
+        final SimpleFeatureType type;
+        final List<SimpleFeature> features;
+        final STRtree index = new STRtree();
+
+        Candidates(SimpleFeatureType type, List<SimpleFeature> features){
+            this.type = type;
+            this.features = features;
+            for(int i=0; i<features.size(); i++){
+                index.insert(((Geometry)features.get(i).getDefaultGeometry()).getEnvelopeInternal(), i);
+            }
+            // built before the candidates are shared, see ElementStore
+            index.build();
+        }
+    }
+
+    /**
+     * Batches of the queries arriving within windowMillis of each other, with the elements reduced by
+     * the topology.
+     */
+    BatchedElements(ElementSource elements, TopologyHelper topology, long windowMillis){
+        this.elements = elements;
+        this.topology = topology;
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public SimpleFeatureCollection GetFeatures(Geometry range) throws IOException{
+        Batch batch;
+        boolean first;
+        synchronized(this){
+            first = openBatch == null;
+            if(first){
+                openBatch = new Batch();
+            }
+            batch = openBatch;
+            batch.ranges.add(range);
+        }
+        if(first){
+            Read(batch);
+        }
+        Candidates candidates = GetCandidates(batch);
+        PreparedGeometry preparedRange = PreparedGeometryFactory.prepare(range);
+        List<Integer> found = new ArrayList<>();
+        for(Object item : candidates.index.query(range.getEnvelopeInternal())){
+            found.add((Integer)item);
+        }
+        Collections.sort(found);
+        List<SimpleFeature> result = new ArrayList<>();
+        for(int i : found){
+            SimpleFeature feature = candidates.features.get(i);
+            if(preparedRange.intersects((Geometry)feature.getDefaultGeometry())){
+                result.add(feature);
+            }
+        }
+        return new ListFeatureCollection(candidates.type, result);
+    }
+
+    /**
+     * Waits out the batch window, closes the batch and reads the elements for all of its ranges.
+     */
+    private void Read(Batch batch){
+        try{
+            Thread.sleep(windowMillis);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        synchronized(this){
+            openBatch = null;
+        }
+        batchCount.incrementAndGet();
+        queryCount.addAndGet(batch.ranges.size());
+        try{
+            Envelope envelope = new Envelope();
+            for(Geometry range : batch.ranges){
+                envelope.expandToInclude(range.getEnvelopeInternal());
+            }
+            SimpleFeatureCollection features = elements.GetFeatures(geometryFactory.toGeometry(envelope));
+            SimpleFeatureType type = features.getSchema();
+            List<SimpleFeature> copies = new ArrayList<>();
+            SimpleFeatureIterator iterator = features.features();
+            try{
+                while(iterator.hasNext()){
+                    // copies, so that the reduced geometries never go into features the source may share
+                    SimpleFeature feature = iterator.next();
+                    SimpleFeature copy = SimpleFeatureBuilder.build(type, feature.getAttributes(), feature.getID());
+                    topology.SetReduced(copy, topology.Reduce((Geometry)feature.getDefaultGeometry()));
+                    copies.add(copy);
+                }
+            } finally {
+                iterator.close();
+            }
+            batch.candidates.complete(new Candidates(type, copies));
+        } catch(IOException | RuntimeException e){
+            batch.candidates.completeExceptionally(e);
+        }
+    }
+
+    private Candidates GetCandidates(Batch batch) throws IOException{
+        try{
+            return batch.candidates.get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch(ExecutionException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException){
+                throw (IOException)cause;
+            }
+            if(cause instanceof RuntimeException){
+                throw (RuntimeException)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /** Number of batches read so far. */
+    public long BatchCount(){
+        return batchCount.get();
+    }
+
+    /** Number of range queries answered from the batches so far. */
+    public long QueryCount(){
+        return queryCount.get();
+    }
+
+    @Override
+    public SimpleFeatureCollection GetFeatures(Set<String> ids) throws IOException{
+        return elements.GetFeatures(ids);
+    }
+
+    @Override
+    public String Fingerprint() throws IOException{
+        return elements.Fingerprint();
+    }
+
+    @Override
+    public Envelope Bounds() throws IOException{
+        return elements.Bounds();
+    }
+
+    @Override
+    public SimpleFeatureType Schema() throws IOException{
+        return elements.Schema();
+    }
+}
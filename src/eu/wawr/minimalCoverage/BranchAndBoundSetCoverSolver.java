@@ -0,0 +1,374 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.*;
+
+/**
+ * Exact set cover by branch and bound, within a time budget.
+ *
+ * Before searching, the problem is reduced: subsets whose uncovered pieces are a subset of another
+ * subset's are dropped, and a subset that is the only remaining cover of some piece is selected.
+ * The rest splits into independent components that are searched one by one, branching on the
+ * uncovered piece with the fewest candidate subsets and pruning with the packing bound of
+ * SetCoverProblem.LowerBound. If the budget runs out, the best cover found so far (never worse
+ * than the local search cover) is returned together with a lower bound. Weighted and partial
+ * problems are not searched; they get the greedy cover.
+ */
+public class BranchAndBoundSetCoverSolver implements SetCoverSolver {
+
+    private static final long searchStackSize = 1L << 28;
+    private static final int nodesPerClockCheck = 1024;
+
+    private final long timeBudgetMillis;
+
+    public BranchAndBoundSetCoverSolver(long timeBudgetMillis){
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    @Override
+    public SetCoverSolution Solve(final SetCoverProblem problem){
+        if(problem.IsWeighted() || problem.IsPartial()){
+            return new GreedySetCoverSolver().Solve(problem);
+        }
+        long deadline = System.nanoTime() + timeBudgetMillis * 1000000;
+        BitSet incumbent = new GreedySetCoverSolver().Select(problem);
+        LocalSearchSetCoverSolver.Improve(problem, incumbent, deadline);
+        final Search search = new Search(problem, deadline);
+        // the search recurses once per selected subset, which can be deeper than a default stack
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                search.Run();
+            }
+        }, "set-cover-search", searchStackSize);
+        thread.start();
+        try{
+            thread.join();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        int lowerBound = Math.max(problem.LowerBound(), search.lowerBound);
+        if(search.selected != null && search.selected.cardinality() < incumbent.cardinality()){
+            return new SetCoverSolution(problem, search.selected, lowerBound);
+        }
+        return new SetCoverSolution(problem, incumbent, lowerBound);
+    }
+
+    private static class Search {
+
+        private final SetCoverProblem problem;
+        private final long deadline;
+        private final boolean[] removed;
+        private final int[] coverCounts;
+        private final int[] marks;
+        private int stamp;
+        private long nodes;
+        private boolean timedOut;
+
+        private final int[] chosen;
+        private int chosenCount;
+        private int[] best;
+        private int bestCount;
+
+        private BitSet selected;
+        private int lowerBound;
+
+        private Search(SetCoverProblem problem, long deadline){
+            this.problem = problem;
+            this.deadline = deadline;
+            removed = new boolean[problem.SubsetCount()];
+            coverCounts = new int[problem.PieceCount()];
+            marks = new int[problem.SubsetCount()];
+            chosen = new int[problem.SubsetCount()];
+        }
+
+        private void Run(){
+            BitSet result = new BitSet(problem.SubsetCount());
+            for(int subset=0; subset<problem.SubsetCount(); subset++){
+                if(problem.IsFixed(subset)){
+                    result.set(subset);
+                    Select(subset);
+                }
+            }
+            Reduce(result);
+            int bound = result.cardinality() + problem.FixedWithoutPiecesCount();
+            boolean complete = true;
+            for(int[] component : GetComponents()){
+                int componentBound = PackingBound(component);
+                chosenCount = 0;
+                best = null;
+                bestCount = Integer.MAX_VALUE;
+                timedOut = false;
+                Search(component);
+                if(best == null){
+                    // no cover found in time, the caller falls back to the incumbent
+                    complete = false;
+                    bound += componentBound;
+                    result = null;
+                    continue;
+                }
+                complete &= !timedOut;
+                bound += timedOut ? componentBound : bestCount;
+                for(int i=0; i<bestCount; i++){
+                    Select(best[i]);
+                    if(result != null){
+                        result.set(best[i]);
+                    }
+                }
+            }
+            selected = result;
+            lowerBound = complete && result != null ? result.cardinality() + problem.FixedWithoutPiecesCount() : bound;
+        }
+
+        /** Drops dominated subsets and selects forced ones until neither applies. */
+        private void Reduce(BitSet result){
+            boolean changed = true;
+            while(changed){
+                changed = false;
+                for(int subset=0; subset<problem.SubsetCount(); subset++){
+                    if(!removed[subset] && !result.get(subset) && (GetGain(subset) == 0 || IsDominated(subset))){
+                        removed[subset] = true;
+                        changed = true;
+                    }
+                }
+                for(int piece=0; piece<problem.PieceCount(); piece++){
+                    if(coverCounts[piece] == 0){
+                        int only = GetOnlyCandidate(piece);
+                        if(only >= 0){
+                            result.set(only);
+                            Select(only);
+                            removed[only] = true;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean IsDominated(int subset){
+            int firstUncovered = -1;
+            for(int piece : problem.Subset(subset)){
+                if(coverCounts[piece] == 0){
+                    firstUncovered = piece;
+                    break;
+                }
+            }
+            for(int other : problem.CoveringSubsets(firstUncovered)){
+                if(other == subset || removed[other]){
+                    continue;
+                }
+                if(CoversUncovered(other, subset)){
+                    int gain = GetGain(subset);
+                    int otherGain = GetGain(other);
+                    if(otherGain > gain || other < subset){
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /** Whether every uncovered piece of the subset is also in the other subset. */
+        private boolean CoversUncovered(int other, int subset){
+            int[] otherPieces = problem.Subset(other);
+            for(int piece : problem.Subset(subset)){
+                if(coverCounts[piece] == 0 && Arrays.binarySearch(otherPieces, piece) < 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int GetOnlyCandidate(int piece){
+            int only = -1;
+            for(int subset : problem.CoveringSubsets(piece)){
+                if(!removed[subset]){
+                    if(only >= 0){
+                        return -1;
+                    }
+                    only = subset;
+                }
+            }
+            return only;
+        }
+
+        /** Uncovered pieces grouped by the remaining subsets connecting them. */
+        private List<int[]> GetComponents(){
+            int[] parents = new int[problem.PieceCount()];
+            for(int piece=0; piece<parents.length; piece++){
+                parents[piece] = piece;
+            }
+            for(int subset=0; subset<problem.SubsetCount(); subset++){
+                if(removed[subset]){
+                    continue;
+                }
+                int first = -1;
+                for(int piece : problem.Subset(subset)){
+                    if(coverCounts[piece] == 0){
+                        if(first < 0){
+                            first = piece;
+                        } else {
+                            int root = FindRoot(parents, piece);
+                            int firstRoot = FindRoot(parents, first);
+                            parents[Math.max(root, firstRoot)] = Math.min(root, firstRoot);
+                        }
+                    }
+                }
+            }
+            Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+            for(int piece=0; piece<parents.length; piece++){
+                if(coverCounts[piece] == 0){
+                    int root = FindRoot(parents, piece);
+                    if(!groups.containsKey(root)){
+                        groups.put(root, new ArrayList<Integer>());
+                    }
+                    groups.get(root).add(piece);
+                }
+            }
+            List<int[]> components = new ArrayList<>();
+            for(List<Integer> group : groups.values()){
+                int[] component = new int[group.size()];
+                for(int i=0; i<component.length; i++){
+                    component[i] = group.get(i);
+                }
+                components.add(component);
+            }
+            return components;
+        }
+
+        private static int FindRoot(int[] parents, int i){
+            while(parents[i] != i){
+                parents[i] = parents[parents[i]];
+                i = parents[i];
+            }
+            return i;
+        }
+
+        private void Search(int[] pieces){
+            if(++nodes % nodesPerClockCheck == 0 && System.nanoTime() > deadline){
+                timedOut = true;
+            }
+            if(timedOut){
+                return;
+            }
+            int branchPiece = -1;
+            int branchDegree = Integer.MAX_VALUE;
+            for(int piece : pieces){
+                if(coverCounts[piece] == 0){
+                    int degree = GetDegree(piece);
+                    if(degree == 0){
+                        return;
+                    }
+                    if(degree < branchDegree){
+                        branchPiece = piece;
+                        branchDegree = degree;
+                    }
+                }
+            }
+            if(branchPiece < 0){
+                if(chosenCount < bestCount){
+                    best = Arrays.copyOf(chosen, chosenCount);
+                    bestCount = chosenCount;
+                }
+                return;
+            }
+            if(chosenCount + PackingBound(pieces) >= bestCount){
+                return;
+            }
+            int[] candidates = GetCandidates(branchPiece, branchDegree);
+            for(int candidate : candidates){
+                chosen[chosenCount++] = candidate;
+                Select(candidate);
+                Search(pieces);
+                Unselect(candidate);
+                chosenCount--;
+                // later branches cover the piece with one of the remaining candidates
+                removed[candidate] = true;
+            }
+            for(int candidate : candidates){
+                removed[candidate] = false;
+            }
+        }
+
+        private int GetDegree(int piece){
+            int degree = 0;
+            for(int subset : problem.CoveringSubsets(piece)){
+                if(!removed[subset]){
+                    degree++;
+                }
+            }
+            return degree;
+        }
+
+        /** Remaining subsets covering the piece, largest gain first. */
+        private int[] GetCandidates(int piece, int degree){
+            final int[] gains = new int[degree];
+            Integer[] order = new Integer[degree];
+            int[] subsets = new int[degree];
+            int count = 0;
+            for(int subset : problem.CoveringSubsets(piece)){
+                if(!removed[subset]){
+                    gains[count] = GetGain(subset);
+                    subsets[count] = subset;
+                    order[count] = count;
+                    count++;
+                }
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i, Integer j) {
+                    return Integer.compare(gains[j], gains[i]);
+                }
+            });
+            int[] candidates = new int[degree];
+            for(int i=0; i<degree; i++){
+                candidates[i] = subsets[order[i]];
+            }
+            return candidates;
+        }
+
+        private int PackingBound(int[] pieces){
+            stamp++;
+            int bound = 0;
+            for(int piece : pieces){
+                if(coverCounts[piece] != 0){
+                    continue;
+                }
+                boolean disjoint = true;
+                for(int subset : problem.CoveringSubsets(piece)){
+                    disjoint &= removed[subset] || marks[subset] != stamp;
+                }
+                if(disjoint){
+                    bound++;
+                    for(int subset : problem.CoveringSubsets(piece)){
+                        marks[subset] = stamp;
+                    }
+                }
+            }
+            return bound;
+        }
+
+        private int GetGain(int subset){
+            int gain = 0;
+            for(int piece : problem.Subset(subset)){
+                if(coverCounts[piece] == 0){
+                    gain++;
+                }
+            }
+            return gain;
+        }
+
+        private void Select(int subset){
+            for(int piece : problem.Subset(subset)){
+                coverCounts[piece]++;
+            }
+        }
+
+        private void Unselect(int subset){
+            for(int piece : problem.Subset(subset)){
+                coverCounts[piece]--;
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package eu.wawr.minimalCoverage;
+
+/**
+ * How OptimalCoverageGenerator splits the clipped elements into pieces.
+ */
+public enum ChoppingEngine {
+    /** Chops the growing piece list against every element in turn, then removes duplicate pieces. */
+    Pairwise,
+    /** Nodes all element boundaries once and polygonizes them into the faces of the arrangement. */
+    Arrangement
+}
@@ -0,0 +1,177 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Covers of earlier queries, evicted least recently used first once there are more than the given
+ * number. Keys are hashes of the precision-reduced, normalized query together with the fingerprint
+ * of the element layer and the generator settings, so a changed layer or setting never reuses an
+ * old cover. The cache can be saved to a file and loaded back, e.g. by a restarted process.
+ */
+public class CoverageCache {
+
+    private static final int fileVersion = 2;
+
+    private final int capacity;
+    private final LinkedHashMap<String, SetCoverSolution> solutions;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public CoverageCache(final int capacity){
+        this.capacity = capacity;
+        solutions = new LinkedHashMap<String, SetCoverSolution>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SetCoverSolution> eldest) {
+                if(size() > capacity){
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Key of the query's cover for the given layer fingerprint and settings, with the query reduced
+     * by the given helper.
+     */
+    public static String Key(Geometry query, String fingerprint, String settings, TopologyHelper topology){
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+        digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(new WKBWriter().write(topology.Reduce(query).norm()));
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /** Cached cover for the key, or null. */
+    public synchronized SetCoverSolution Get(String key){
+        SetCoverSolution solution = solutions.get(key);
+        if(solution == null){
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return solution;
+    }
+
+    public synchronized void Put(String key, SetCoverSolution solution){
+        // only the ids, the bound, the cost and the coverage are kept, not the problem the solution was selected from
+        solutions.put(key, new SetCoverSolution(new HashSet<>(solution.Ids()), solution.LowerBound(),
+                solution.Cost(), solution.CoveredWeight(), solution.TotalWeight(), solution.IsWeighted()));
+    }
+
+    public synchronized int Size(){
+        return solutions.size();
+    }
+
+    public int Capacity(){
+        return capacity;
+    }
+
+    public synchronized long HitCount(){
+        return hitCount;
+    }
+
+    public synchronized long MissCount(){
+        return missCount;
+    }
+
+    public synchronized long EvictionCount(){
+        return evictionCount;
+    }
+
+    /**
+     * Writes the cached covers to the file, least recently used first.
+     */
+    public synchronized void Save(File file) throws IOException{
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+        try{
+            output.writeInt(fileVersion);
+            output.writeInt(solutions.size());
+            for(Map.Entry<String, SetCoverSolution> entry : solutions.entrySet()){
+                output.writeUTF(entry.getKey());
+                output.writeInt(entry.getValue().LowerBound());
+                output.writeDouble(entry.getValue().Cost());
+                output.writeDouble(entry.getValue().CoveredWeight());
+                output.writeDouble(entry.getValue().TotalWeight());
+                output.writeBoolean(entry.getValue().IsWeighted());
+                output.writeInt(entry.getValue().Size());
+                for(String id : entry.getValue().Ids()){
+                    output.writeUTF(id);
+                }
+            }
+        } finally {
+            output.close();
+        }
+        if(file.exists() && !file.delete() || !temporaryFile.renameTo(file)){
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Cache with the given capacity holding the covers saved in the file, or empty if there is no such
+     * file. The most recently used covers are kept if the file holds more than the capacity. Files of
+     * the first version are rejected: their keys were computed with fewer settings, so none of their
+     * covers could ever be found.
+     */
+    public static CoverageCache Load(File file, int capacity) throws IOException{
+        CoverageCache cache = new CoverageCache(capacity);
+        if(!file.exists()){
+            return cache;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try{
+            int version = input.readInt();
+            if(version != fileVersion){
+                throw new IOException("Unsupported cache file version " + version + " in " + file);
+            }
+            int count = input.readInt();
+            for(int i=0; i<count; i++){
+                String key = input.readUTF();
+                int lowerBound = input.readInt();
+                double cost = input.readDouble();
+                double coveredWeight = input.readDouble();
+                double totalWeight = input.readDouble();
+                boolean weighted = input.readBoolean();
+                cache.solutions.put(key, new SetCoverSolution(ReadIds(input), lowerBound, cost, coveredWeight,
+                        totalWeight, weighted));
+            }
+        } finally {
+            input.close();
+        }
+        cache.evictionCount = 0;
+        return cache;
+    }
+
+    private static Set<String> ReadIds(DataInputStream input) throws IOException{
+        int size = input.readInt();
+        Set<String> ids = new HashSet<>();
+        for(int j=0; j<size; j++){
+            ids.add(input.readUTF());
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return Size() + " entries, " + hitCount + " hits, " + missCount + " misses, " + evictionCount + " evictions";
+    }
+}
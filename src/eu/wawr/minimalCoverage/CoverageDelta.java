@@ -0,0 +1,38 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Change of an IncrementalCoverage cover caused by one element change.
+ */
+public class CoverageDelta {
+
+    private final Set<String> added;
+    private final Set<String> removed;
+
+    public CoverageDelta(Set<String> added, Set<String> removed){
+        this.added = Collections.unmodifiableSet(added);
+        this.removed = Collections.unmodifiableSet(removed);
+    }
+
+    /** Ids that joined the cover. */
+    public Set<String> Added(){
+        return added;
+    }
+
+    /** Ids that left the cover. */
+    public Set<String> Removed(){
+        return removed;
+    }
+
+    public boolean IsEmpty(){
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString(){
+        return "+" + added + " -" + removed;
+    }
+}
@@ -0,0 +1,10 @@
+package eu.wawr.minimalCoverage;
+
+/**
+ * Listener for the stages of OptimalCoverageGenerator runs. It is called on the thread that ran the
+ * stage, so it must be thread-safe when a generator is shared by concurrent runs.
+ */
+public interface CoverageMetrics {
+
+    void StageCompleted(StageMetrics stage);
+}
@@ -0,0 +1,236 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import org.geotools.feature.SchemaException;
+import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.geojson.geom.GeometryJSON;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Covers ranges sent over HTTP with a single generator, whose elements stay loaded and indexed between
+ * requests. POST /cover takes the range as WKT or as a GeoJSON geometry or feature and answers with
+ * the selected ids; GET /stats answers with request counts and latency percentiles.
+ *
+ * Requests run concurrently on the worker threads and share the generator's element index. A request
+ * for a range that is already being covered, up to precision reduction, waits for that run and gets
+ * its result instead of covering the range again. Requests for different ranges that arrive within the
+ * batch window read their elements together, see BatchedElements, so every element in range is read
+ * and reduced once per batch rather than once per request.
+ */
+public class CoverageServer {
+
+    private static final int latencyCapacity = 10000;
+    private static final double[] percentiles = {0.5, 0.9, 0.99, 1};
+
+    private final OptimalCoverageGenerator generator;
+    private final MetricsSummary metrics;
+    private final CoverageCache cache;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final BatchedElements elements;
+    private final ConcurrentMap<String, CompletableFuture<SetCoverSolution>> runningRanges = new ConcurrentHashMap<>();
+    private final LatencyRecorder latencies = new LatencyRecorder(latencyCapacity);
+    private final AtomicLong runCount = new AtomicLong();
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * Server on the given address with the given number of worker threads, batching the requests that
+     * arrive within batchWindowMillis of each other. Metrics and cache may be null; otherwise they should
+     * be the generator's, and their counts are included in /stats.
+     */
+    public CoverageServer(OptimalCoverageGenerator generator, MetricsSummary metrics, CoverageCache cache,
+                          InetSocketAddress address, int workerCount, long batchWindowMillis) throws IOException{
+        this.generator = generator;
+        elements = new BatchedElements(generator.Elements(), generator.Topology(), batchWindowMillis);
+        this.metrics = metrics;
+        this.cache = cache;
+        server = HttpServer.create(address, 0);
+        workers = Executors.newFixedThreadPool(workerCount);
+        server.setExecutor(workers);
+        server.createContext("/cover", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                HandleCover(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Respond(exchange, 200, StatsJson());
+            }
+        });
+    }
+
+    public void Start(){
+        server.start();
+    }
+
+    public void Stop(){
+        server.stop(0);
+        workers.shutdown();
+    }
+
+    public InetSocketAddress Address(){
+        return server.getAddress();
+    }
+
+    /**
+     * Covers the range, or waits for a cover of the same range already in progress.
+     */
+    public SetCoverSolution Cover(Geometry range) throws IOException, SchemaException{
+        String key = generator.Topology().Reduce(range).norm().toText();
+        CompletableFuture<SetCoverSolution> future = new CompletableFuture<>();
+        CompletableFuture<SetCoverSolution> running = runningRanges.putIfAbsent(key, future);
+        if(running != null){
+            deduplicatedCount.incrementAndGet();
+            return GetSolution(running);
+        }
+        runCount.incrementAndGet();
+        try{
+            SetCoverSolution solution = generator.Solve(range, elements);
+            future.complete(solution);
+            return solution;
+        } catch(IOException | SchemaException | RuntimeException e){
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            runningRanges.remove(key, future);
+        }
+    }
+
+    private SetCoverSolution GetSolution(CompletableFuture<SetCoverSolution> future) throws IOException, SchemaException{
+        try{
+            return future.get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch(ExecutionException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException){
+                throw (IOException)cause;
+            }
+            if(cause instanceof SchemaException){
+                throw (SchemaException)cause;
+            }
+            if(cause instanceof RuntimeException){
+                throw (RuntimeException)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Range given as WKT or as a GeoJSON geometry or feature.
+     */
+    public static Geometry ReadRange(String text) throws IOException, ParseException{
+        String trimmed = text.trim();
+        if(!trimmed.startsWith("{")){
+            return new WKTReader().read(trimmed);
+        }
+        if(trimmed.matches("(?s).*\"type\"\\s*:\\s*\"Feature\".*")){
+            SimpleFeature feature = new FeatureJSON().readFeature(new StringReader(trimmed));
+            return (Geometry)feature.getDefaultGeometry();
+        }
+        return new GeometryJSON().read(new StringReader(trimmed));
+    }
+
+    private void HandleCover(HttpExchange exchange) throws IOException{
+        long start = System.nanoTime();
+        if(!exchange.getRequestMethod().equals("POST")){
+            Respond(exchange, 405, "{\"error\": \"POST the range as WKT or GeoJSON\"}\n");
+            return;
+        }
+        Geometry range;
+        try{
+            range = ReadRange(ReadBody(exchange.getRequestBody()));
+        } catch(ParseException | IOException | RuntimeException e){
+            Respond(exchange, 400,
+                    "{\"error\": " + MetricsSummary.Quote("Cannot read the range: " + e.getMessage()) + "}\n");
+            return;
+        }
+        if(range == null){
+            Respond(exchange, 400, "{\"error\": \"Cannot read the range\"}\n");
+            return;
+        }
+        try{
+            SetCoverSolution solution = Cover(range);
+            List<String> ids = new ArrayList<>(solution.Ids());
+            Collections.sort(ids);
+            StringBuilder json = new StringBuilder("{\"size\": ").append(solution.Size())
+                    .append(", \"lower_bound\": ").append(solution.LowerBound())
+                    .append(", \"optimal\": ").append(solution.IsOptimal())
+                    .append(", \"ids\": [");
+            for(int i=0; i<ids.size(); i++){
+                json.append(i == 0 ? "" : ", ").append(MetricsSummary.Quote(ids.get(i)));
+            }
+            Respond(exchange, 200, json.append("]}\n").toString());
+        } catch(IOException | SchemaException | RuntimeException e){
+            failureCount.incrementAndGet();
+            Respond(exchange, 500, "{\"error\": " + MetricsSummary.Quote(e.toString()) + "}\n");
+        } finally {
+            latencies.Record(System.nanoTime() - start);
+        }
+    }
+
+    public String StatsJson(){
+        double[] values = latencies.Percentiles(percentiles);
+        StringBuilder json = new StringBuilder("{\"requests\": ").append(latencies.Count())
+                .append(", \"runs\": ").append(runCount.get())
+                .append(", \"deduplicated\": ").append(deduplicatedCount.get())
+                .append(", \"batches\": ").append(elements.BatchCount())
+                .append(", \"batched\": ").append(elements.QueryCount())
+                .append(", \"failures\": ").append(failureCount.get())
+                .append(String.format(Locale.ROOT,
+                        ", \"latency_ms\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f}",
+                        values[0], values[1], values[2], values[3]));
+        if(cache != null){
+            json.append(String.format(
+                    ", \"cache\": {\"entries\": %d, \"hits\": %d, \"misses\": %d, \"evictions\": %d}",
+                    cache.Size(), cache.HitCount(), cache.MissCount(), cache.EvictionCount()));
+        }
+        if(metrics != null){
+            json.append(", \"metrics\": ").append(metrics.ToJson().trim());
+        }
+        return json.append("}\n").toString();
+    }
+
+    private static String ReadBody(InputStream stream) throws IOException{
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while((length = stream.read(buffer)) != -1){
+            body.write(buffer, 0, length);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void Respond(HttpExchange exchange, int status, String body) throws IOException{
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream stream = exchange.getResponseBody();
+        try{
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+    }
+}
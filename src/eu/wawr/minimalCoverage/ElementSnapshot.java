@@ -0,0 +1,478 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.CRS;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Elements preprocessed into a file and memory-mapped, so that opening a layer only reads the
+ * envelopes to rebuild the spatial index. Each element is stored as its feature id, geometry,
+ * precision-reduced geometry and other attributes, and is decoded only when a query returns it.
+ * Features returned by queries have the schema of the source and carry the reduced geometry in
+ * their user data, so it is not reduced again.
+ *
+ * The file starts with a magic number and the offset of the tables, followed by the element records
+ * in source order. The tables hold the schema, the layer fingerprint, the envelopes and record
+ * offsets in STR order, so that nearby elements are looked up together, and the element positions
+ * sorted by feature id. Attribute values are stored as text, dates as milliseconds since the epoch.
+ */
+public class ElementSnapshot implements ElementSource {
+
+    public static final String extension = ".snapshot";
+
+    private static final long magic = 0x4d43534e41503032L;
+    // snapshots of the first format hold only the geometries and the id attribute
+    private static final long firstFormatMagic = 0x4d43534e41503031L;
+    private static final long segmentBytes = 1L << 30;
+    private static final int minimumOverlapBytes = 1 << 16;
+    private static final int nodeCapacity = 10;
+    private static final GeometryFactory packedGeometryFactory =
+            new GeometryFactory(PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+    // stored reduced geometries are only picked up by generators with the same grid scale
+    private static final TopologyHelper topology = new TopologyHelper(PrecisionPolicy.Fixed());
+
+    private final MappedByteBuffer[] segments;
+    private final SimpleFeatureType type;
+    private final int geometryIndex;
+    private final String fingerprint;
+    private final int count;
+    private final long recordOffsetsOffset;
+    private final long idOrderOffset;
+    private final STRtree index = new STRtree();
+    private final Envelope bounds = new Envelope();
+
+    private ElementSnapshot(File file) throws IOException{
+        FileInputStream stream = new FileInputStream(file);
+        try{
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            ByteBuffer start = ByteBuffer.allocate(20);
+            channel.read(start, 0);
+            start.flip();
+            long fileMagic = size < 20 ? 0 : start.getLong();
+            if(fileMagic == firstFormatMagic){
+                throw new IOException(file + " is an element snapshot of an older format, write it again with --snapshot");
+            }
+            if(fileMagic != magic){
+                throw new IOException(file + " is not an element snapshot");
+            }
+            start.getLong();
+            int overlap = Math.max(start.getInt(), minimumOverlapBytes);
+            segments = new MappedByteBuffer[(int)((size + segmentBytes - 1) / segmentBytes)];
+            for(int i=0; i<segments.length; i++){
+                long offset = i * segmentBytes;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(segmentBytes + overlap, size - offset));
+            }
+        } finally {
+            stream.close();
+        }
+        long tablesOffset = ReadLong(8);
+        ByteBuffer tables = Slice(tablesOffset);
+        int tablesStart = tables.position();
+        String typeName = ReadString(tables);
+        String crs = ReadString(tables);
+        geometryIndex = tables.getInt();
+        String[] attributeNames = new String[tables.getInt()];
+        String[] attributeBindings = new String[attributeNames.length];
+        for(int i=0; i<attributeNames.length; i++){
+            attributeNames[i] = ReadString(tables);
+            attributeBindings[i] = ReadString(tables);
+        }
+        fingerprint = ReadString(tables);
+        count = tables.getInt();
+        type = MakeType(typeName, crs, geometryIndex, attributeNames, attributeBindings);
+        long envelopesOffset = tablesOffset + tables.position() - tablesStart;
+        recordOffsetsOffset = envelopesOffset + 32L * count;
+        idOrderOffset = recordOffsetsOffset + 8L * count;
+        for(int i=0; i<count; i++){
+            long offset = envelopesOffset + 32L * i;
+            Envelope envelope = new Envelope(ReadDouble(offset), ReadDouble(offset + 8),
+                    ReadDouble(offset + 16), ReadDouble(offset + 24));
+            index.insert(envelope, i);
+            bounds.expandToInclude(envelope);
+        }
+        // STRtree builds itself on the first query, which must not race between threads
+        index.build();
+    }
+
+    public static ElementSnapshot Open(File file) throws IOException{
+        return new ElementSnapshot(file);
+    }
+
+    /**
+     * Writes the elements of the source with all their attributes to a snapshot file. The idAttribute
+     * values go into the fingerprint, as in ElementStore.
+     */
+    public static void Write(FeatureSource featureSource, String idAttribute, File file) throws IOException{
+        SimpleFeatureType sourceType = (SimpleFeatureType)featureSource.getSchema();
+        GeometryDescriptor geometryDescriptor = sourceType.getGeometryDescriptor();
+        int geometryIndex = sourceType.indexOf(geometryDescriptor.getLocalName());
+        List<Envelope> envelopes = new ArrayList<>();
+        List<Long> recordOffsets = new ArrayList<>();
+        List<String> featureIds = new ArrayList<>();
+        LayerDigest digest = new LayerDigest();
+        WKBWriter writer = new WKBWriter();
+        int maxRecordBytes = 0;
+        long position = 20;
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try{
+            output.writeLong(magic);
+            output.writeLong(0);
+            output.writeInt(0);
+            FeatureIterator iterator = featureSource.getFeatures().features();
+            try{
+                while(iterator.hasNext()){
+                    SimpleFeature feature = (SimpleFeature)iterator.next();
+                    Geometry geometry = (Geometry)feature.getDefaultGeometry();
+                    if(geometry == null){
+                        continue;
+                    }
+                    Object attributeId = feature.getAttribute(idAttribute);
+                    String attributeIdText = attributeId == null ? null : attributeId.toString();
+                    byte[] wkb = writer.write(geometry);
+                    byte[] reducedWkb = writer.write(topology.Reduce(geometry));
+                    digest.Add(feature.getID(), attributeIdText, wkb);
+                    ByteArrayOutputStream record = new ByteArrayOutputStream();
+                    DataOutputStream recordOutput = new DataOutputStream(record);
+                    WriteString(recordOutput, feature.getID());
+                    recordOutput.writeInt(wkb.length);
+                    recordOutput.write(wkb);
+                    recordOutput.writeInt(reducedWkb.length);
+                    recordOutput.write(reducedWkb);
+                    for(int i=0; i<sourceType.getAttributeCount(); i++){
+                        if(i != geometryIndex){
+                            WriteString(recordOutput, EncodeValue(feature.getAttribute(i)));
+                        }
+                    }
+                    record.writeTo(output);
+                    envelopes.add(geometry.getEnvelopeInternal());
+                    recordOffsets.add(position);
+                    featureIds.add(feature.getID());
+                    maxRecordBytes = Math.max(maxRecordBytes, record.size());
+                    position += record.size();
+                }
+            } finally {
+                iterator.close();
+            }
+            CoordinateReferenceSystem crs = geometryDescriptor.getCoordinateReferenceSystem();
+            WriteString(output, sourceType.getTypeName());
+            WriteString(output, crs == null ? null : crs.toWKT());
+            output.writeInt(geometryIndex);
+            output.writeInt(sourceType.getAttributeCount());
+            for(AttributeDescriptor descriptor : sourceType.getAttributeDescriptors()){
+                WriteString(output, descriptor.getLocalName());
+                WriteString(output, descriptor.getType().getBinding().getName());
+            }
+            WriteString(output, digest.Hex());
+            output.writeInt(envelopes.size());
+            final int[] order = GetStrOrder(envelopes);
+            for(int i : order){
+                Envelope envelope = envelopes.get(i);
+                output.writeDouble(envelope.getMinX());
+                output.writeDouble(envelope.getMaxX());
+                output.writeDouble(envelope.getMinY());
+                output.writeDouble(envelope.getMaxY());
+            }
+            for(int i : order){
+                output.writeLong(recordOffsets.get(i));
+            }
+            final List<String> orderedIds = new ArrayList<>();
+            List<Integer> idOrder = new ArrayList<>();
+            for(int i=0; i<order.length; i++){
+                orderedIds.add(featureIds.get(order[i]));
+                idOrder.add(i);
+            }
+            Collections.sort(idOrder, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i, Integer j) {
+                    return orderedIds.get(i).compareTo(orderedIds.get(j));
+                }
+            });
+            for(int i : idOrder){
+                output.writeInt(i);
+            }
+        } finally {
+            output.close();
+        }
+        RandomAccessFile header = new RandomAccessFile(file, "rw");
+        try{
+            header.seek(8);
+            header.writeLong(position);
+            header.writeInt(maxRecordBytes);
+        } finally {
+            header.close();
+        }
+    }
+
+    /**
+     * Sort-Tile-Recursive order of the envelopes: vertical slices by centre x, each sorted by centre y.
+     */
+    private static int[] GetStrOrder(final List<Envelope> envelopes){
+        List<Integer> order = new ArrayList<>();
+        for(int i=0; i<envelopes.size(); i++){
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Double.compare(envelopes.get(i).centre().x, envelopes.get(j).centre().x);
+            }
+        });
+        int leafCount = (int)Math.ceil(envelopes.size() / (double)nodeCapacity);
+        int sliceSize = nodeCapacity * (int)Math.ceil(Math.sqrt(leafCount));
+        int[] result = new int[envelopes.size()];
+        for(int start=0; start<order.size(); start+=sliceSize){
+            List<Integer> slice = order.subList(start, Math.min(start + sliceSize, order.size()));
+            Collections.sort(slice, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i, Integer j) {
+                    return Double.compare(envelopes.get(i).centre().y, envelopes.get(j).centre().y);
+                }
+            });
+            for(int i=0; i<slice.size(); i++){
+                result[start + i] = slice.get(i);
+            }
+        }
+        return result;
+    }
+
+    public int Size(){
+        return count;
+    }
+
+    @Override
+    public SimpleFeatureCollection GetFeatures(Geometry range) throws IOException{
+        PreparedGeometry preparedRange = PreparedGeometryFactory.prepare(range);
+        List<Integer> candidates = new ArrayList<>();
+        for(Object item : index.query(range.getEnvelopeInternal())){
+            candidates.add((Integer)item);
+        }
+        Collections.sort(candidates);
+        WKBReader reader = new WKBReader(packedGeometryFactory);
+        List<SimpleFeature> result = new ArrayList<>();
+        for(int candidate : candidates){
+            SimpleFeature feature = ReadFeature(candidate, reader);
+            if(preparedRange.intersects((Geometry)feature.getDefaultGeometry())){
+                result.add(feature);
+            }
+        }
+        return new ListFeatureCollection(type, result);
+    }
+
+    @Override
+    public SimpleFeatureCollection GetFeatures(Set<String> ids) throws IOException{
+        List<Integer> found = new ArrayList<>();
+        for(String id : ids){
+            int position = FindId(id);
+            if(position >= 0){
+                found.add(position);
+            }
+        }
+        Collections.sort(found);
+        WKBReader reader = new WKBReader(packedGeometryFactory);
+        List<SimpleFeature> result = new ArrayList<>();
+        for(int position : found){
+            result.add(ReadFeature(position, reader));
+        }
+        return new ListFeatureCollection(type, result);
+    }
+
+    @Override
+    public String Fingerprint(){
+        return fingerprint;
+    }
+
+    @Override
+    public Envelope Bounds(){
+        return new Envelope(bounds);
+    }
+
+    @Override
+    public SimpleFeatureType Schema(){
+        return type;
+    }
+
+    /**
+     * Position of the element with the feature id, by binary search over the id order table, or -1.
+     */
+    private int FindId(String id){
+        int low = 0;
+        int high = count - 1;
+        while(low <= high){
+            int middle = (low + high) >>> 1;
+            int position = ReadInt(idOrderOffset + 4L * middle);
+            int comparison = ReadString(Slice(ReadLong(recordOffsetsOffset + 8L * position))).compareTo(id);
+            if(comparison < 0){
+                low = middle + 1;
+            } else if(comparison > 0){
+                high = middle - 1;
+            } else {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private SimpleFeature ReadFeature(int position, WKBReader reader) throws IOException{
+        ByteBuffer record = Slice(ReadLong(recordOffsetsOffset + 8L * position));
+        String featureId = ReadString(record);
+        Geometry geometry;
+        Geometry reducedGeometry;
+        try{
+            geometry = reader.read(ReadBytes(record));
+            reducedGeometry = reader.read(ReadBytes(record));
+        } catch(ParseException e){
+            throw new IOException("Corrupt geometry of element " + featureId, e);
+        }
+        Object[] values = new Object[type.getAttributeCount()];
+        for(int i=0; i<values.length; i++){
+            values[i] = i == geometryIndex
+                    ? geometry
+                    : DecodeValue(ReadString(record), type.getDescriptor(i).getType().getBinding());
+        }
+        SimpleFeature feature = SimpleFeatureBuilder.build(type, values, featureId);
+        topology.SetReduced(feature, reducedGeometry);
+        return feature;
+    }
+
+    private static SimpleFeatureType MakeType(String typeName, String crs, int geometryIndex,
+                                              String[] attributeNames, String[] attributeBindings) throws IOException{
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName(typeName);
+        try{
+            if(crs != null){
+                builder.setCRS(CRS.parseWKT(crs));
+            }
+            for(int i=0; i<attributeNames.length; i++){
+                builder.add(attributeNames[i], Class.forName(attributeBindings[i]));
+            }
+        } catch(FactoryException | ClassNotFoundException e){
+            throw new IOException("Cannot restore the snapshot schema", e);
+        }
+        builder.setDefaultGeometry(attributeNames[geometryIndex]);
+        return builder.buildFeatureType();
+    }
+
+    private static String EncodeValue(Object value){
+        if(value == null){
+            return null;
+        }
+        if(value instanceof Date){
+            return String.valueOf(((Date)value).getTime());
+        }
+        return value.toString();
+    }
+
+    private static Object DecodeValue(String text, Class<?> binding) throws IOException{
+        if(text == null || binding == String.class){
+            return text;
+        }
+        try{
+            if(binding == Integer.class){
+                return Integer.valueOf(text);
+            } else if(binding == Long.class){
+                return Long.valueOf(text);
+            } else if(binding == Short.class){
+                return Short.valueOf(text);
+            } else if(binding == Double.class){
+                return Double.valueOf(text);
+            } else if(binding == Float.class){
+                return Float.valueOf(text);
+            } else if(binding == Boolean.class){
+                return Boolean.valueOf(text);
+            } else if(binding == BigDecimal.class){
+                return new BigDecimal(text);
+            } else if(binding == BigInteger.class){
+                return new BigInteger(text);
+            } else if(binding == Date.class){
+                return new Date(Long.parseLong(text));
+            }
+        } catch(NumberFormatException e){
+            throw new IOException("Corrupt attribute value " + text, e);
+        }
+        Object value = Converters.convert(text, binding);
+        if(value == null){
+            throw new IOException("Cannot restore a " + binding.getName() + " attribute from " + text);
+        }
+        return value;
+    }
+
+    /**
+     * Buffer positioned at the offset, with at least the rest of the record it falls in remaining.
+     */
+    private ByteBuffer Slice(long offset){
+        ByteBuffer buffer = segments[(int)(offset / segmentBytes)].duplicate();
+        buffer.position((int)(offset % segmentBytes));
+        return buffer;
+    }
+
+    private long ReadLong(long offset){
+        return segments[(int)(offset / segmentBytes)].getLong((int)(offset % segmentBytes));
+    }
+
+    private int ReadInt(long offset){
+        return segments[(int)(offset / segmentBytes)].getInt((int)(offset % segmentBytes));
+    }
+
+    private double ReadDouble(long offset){
+        return segments[(int)(offset / segmentBytes)].getDouble((int)(offset % segmentBytes));
+    }
+
+    private static byte[] ReadBytes(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String ReadString(ByteBuffer buffer){
+        int length = buffer.getInt();
+        if(length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void WriteString(DataOutputStream output, String text) throws IOException{
+        if(text == null){
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
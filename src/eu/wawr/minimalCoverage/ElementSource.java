@@ -0,0 +1,32 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * The elements layer OptimalCoverageGenerator picks its cover from. Elements are identified by
+ * their feature ids.
+ */
+public interface ElementSource {
+
+    /** Elements intersecting the range. */
+    SimpleFeatureCollection GetFeatures(Geometry range) throws IOException;
+
+    /** Elements with the given feature ids. */
+    SimpleFeatureCollection GetFeatures(Set<String> ids) throws IOException;
+
+    /** Text that changes whenever the elements do, so that covers computed on them can be reused. */
+    String Fingerprint() throws IOException;
+
+    /** Envelope of all elements. */
+    Envelope Bounds() throws IOException;
+
+    /** Type of the features the queries return. */
+    SimpleFeatureType Schema() throws IOException;
+}
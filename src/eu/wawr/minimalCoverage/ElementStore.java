@@ -0,0 +1,188 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.WKBWriter;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Elements read once from a FeatureSource and kept in memory: feature ids, attributes and geometries
+ * with packed coordinate arrays, plus an STRtree over the envelopes. Queries never go back to the
+ * source and are safe to run concurrently. The features they return have the schema of the source.
+ */
+public class ElementStore implements ElementSource {
+
+    private static final int geometryOverheadBytes = 200;
+    private static final int stringOverheadBytes = 48;
+    private static final int valueOverheadBytes = 24;
+    private static final GeometryFactory packedGeometryFactory =
+            new GeometryFactory(PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+
+    private final SimpleFeatureType type;
+    private final String[] featureIds;
+    private final String[] attributeIds;
+    private final Geometry[] geometries;
+    private final Object[][] values;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final STRtree index = new STRtree();
+    private final Envelope bounds = new Envelope();
+    private final long estimatedBytes;
+    private String fingerprint;
+
+    private ElementStore(SimpleFeatureType type, List<String> featureIds, List<String> attributeIds,
+                         List<Geometry> geometries, List<Object[]> values, long estimatedBytes){
+        this.type = type;
+        this.featureIds = featureIds.toArray(new String[featureIds.size()]);
+        this.attributeIds = attributeIds.toArray(new String[attributeIds.size()]);
+        this.geometries = geometries.toArray(new Geometry[geometries.size()]);
+        this.values = values.toArray(new Object[values.size()][]);
+        this.estimatedBytes = estimatedBytes;
+        for(int i=0; i<this.geometries.length; i++){
+            index.insert(this.geometries[i].getEnvelopeInternal(), i);
+            bounds.expandToInclude(this.geometries[i].getEnvelopeInternal());
+            indexes.put(this.featureIds[i], i);
+        }
+        // STRtree builds itself on the first query, which must not race between threads
+        index.build();
+    }
+
+    /**
+     * Reads the whole layer into memory, or gives up and returns a source streaming from the
+     * FeatureSource as soon as the estimated size of the store goes over maxBytes.
+     */
+    public static ElementSource Load(FeatureSource featureSource, String idAttribute, long maxBytes) throws IOException{
+        SimpleFeatureType type = (SimpleFeatureType)featureSource.getSchema();
+        int geometryIndex = type.indexOf(type.getGeometryDescriptor().getLocalName());
+        List<String> featureIds = new ArrayList<>();
+        List<String> attributeIds = new ArrayList<>();
+        List<Geometry> geometries = new ArrayList<>();
+        List<Object[]> values = new ArrayList<>();
+        long estimatedBytes = 0;
+        FeatureIterator iterator = featureSource.getFeatures().features();
+        try{
+            while(iterator.hasNext()){
+                SimpleFeature feature = (SimpleFeature)iterator.next();
+                Geometry geometry = (Geometry)feature.getDefaultGeometry();
+                if(geometry == null){
+                    continue;
+                }
+                Object attributeId = feature.getAttribute(idAttribute);
+                Geometry packedGeometry = packedGeometryFactory.createGeometry(geometry);
+                Object[] featureValues = feature.getAttributes().toArray();
+                featureValues[geometryIndex] = packedGeometry;
+                featureIds.add(feature.getID());
+                attributeIds.add(attributeId == null ? null : attributeId.toString());
+                geometries.add(packedGeometry);
+                values.add(featureValues);
+                estimatedBytes += EstimateBytes(geometry, feature.getID(), featureValues, geometryIndex);
+                if(estimatedBytes > maxBytes){
+                    return new FeatureSourceElements(featureSource);
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+        return new ElementStore(type, featureIds, attributeIds, geometries, values, estimatedBytes);
+    }
+
+    private static long EstimateBytes(Geometry geometry, String featureId, Object[] values, int geometryIndex){
+        long bytes = geometryOverheadBytes * geometry.getNumGeometries() + 16L * geometry.getNumPoints();
+        bytes += stringOverheadBytes + 2L * featureId.length() + 8L * values.length;
+        for(int i=0; i<values.length; i++){
+            if(i == geometryIndex || values[i] == null){
+                continue;
+            }
+            bytes += values[i] instanceof String
+                    ? stringOverheadBytes + 2L * ((String)values[i]).length()
+                    : valueOverheadBytes;
+        }
+        return bytes;
+    }
+
+    public int Size(){
+        return featureIds.length;
+    }
+
+    /** Rough size of the stored ids, attributes and geometries in bytes. */
+    public long EstimatedBytes(){
+        return estimatedBytes;
+    }
+
+    @Override
+    public SimpleFeatureCollection GetFeatures(Geometry range){
+        PreparedGeometry preparedRange = PreparedGeometryFactory.prepare(range);
+        List<Integer> candidates = new ArrayList<>();
+        for(Object item : index.query(range.getEnvelopeInternal())){
+            candidates.add((Integer)item);
+        }
+        Collections.sort(candidates);
+        List<SimpleFeature> result = new ArrayList<>();
+        for(int candidate : candidates){
+            if(preparedRange.intersects(geometries[candidate])){
+                result.add(MakeFeature(candidate));
+            }
+        }
+        return new ListFeatureCollection(type, result);
+    }
+
+    @Override
+    public SimpleFeatureCollection GetFeatures(Set<String> ids){
+        List<Integer> found = new ArrayList<>();
+        for(String id : ids){
+            if(indexes.containsKey(id)){
+                found.add(indexes.get(id));
+            }
+        }
+        Collections.sort(found);
+        List<SimpleFeature> result = new ArrayList<>();
+        for(int i : found){
+            result.add(MakeFeature(i));
+        }
+        return new ListFeatureCollection(type, result);
+    }
+
+    /**
+     * Hash of the stored ids and geometries, computed on first use.
+     */
+    @Override
+    public synchronized String Fingerprint(){
+        if(fingerprint == null){
+            LayerDigest digest = new LayerDigest();
+            WKBWriter writer = new WKBWriter();
+            for(int i=0; i<geometries.length; i++){
+                digest.Add(featureIds[i], attributeIds[i], writer.write(geometries[i]));
+            }
+            fingerprint = digest.Hex();
+        }
+        return fingerprint;
+    }
+
+    @Override
+    public Envelope Bounds(){
+        return new Envelope(bounds);
+    }
+
+    @Override
+    public SimpleFeatureType Schema(){
+        return type;
+    }
+
+    private SimpleFeature MakeFeature(int i){
+        return SimpleFeatureBuilder.build(type, values[i], featureIds[i]);
+    }
+}
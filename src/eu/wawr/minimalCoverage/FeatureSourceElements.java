@@ -0,0 +1,121 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.CommonFactoryFinder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Elements read from a FeatureSource by filtering it on every query.
+ */
+public class FeatureSourceElements implements ElementSource {
+
+    private static final String[] shapefileExtensions = {"shp", "shx", "dbf"};
+
+    private final FeatureSource featureSource;
+    private final FilterFactory2 filterFactory;
+    private final File shapefile;
+
+    public FeatureSourceElements(FeatureSource featureSource){
+        this(featureSource, null);
+    }
+
+    /**
+     * Elements of the source read from the given .shp file, whose files then serve as the fingerprint.
+     */
+    public FeatureSourceElements(FeatureSource featureSource, File shapefile){
+        this.featureSource = featureSource;
+        this.shapefile = shapefile;
+        filterFactory = CommonFactoryFinder.getFilterFactory2();
+    }
+
+    @Override
+    public SimpleFeatureCollection GetFeatures(Geometry range) throws IOException{
+        String geometryPropertyName = featureSource.getSchema().getGeometryDescriptor().getLocalName();
+        Filter filter = filterFactory.intersects(
+                filterFactory.property(geometryPropertyName),
+                filterFactory.literal(range));
+        return (SimpleFeatureCollection)featureSource.getFeatures(filter);
+    }
+
+    @Override
+    public SimpleFeatureCollection GetFeatures(Set<String> ids) throws IOException{
+        Set<FeatureId> featureIds = new HashSet<>();
+        for(String id : ids){
+            featureIds.add(filterFactory.featureId(id));
+        }
+        Filter filter = filterFactory.id(featureIds);
+        return (SimpleFeatureCollection)featureSource.getFeatures(filter);
+    }
+
+    /**
+     * For a shapefile, the name, sizes and modification times of its .shp, .shx and .dbf files, which
+     * any edit through GeoTools or a GIS changes. An edit that restores both the size and the time of
+     * every file goes unnoticed. Other sources are digested in full, as ElementStore does, on every call.
+     */
+    @Override
+    public String Fingerprint() throws IOException{
+        if(shapefile != null){
+            StringBuilder fingerprint = new StringBuilder(featureSource.getName().toString());
+            for(String extension : shapefileExtensions){
+                File file = GetSiblingFile(extension);
+                fingerprint.append(";").append(extension).append(":")
+                        .append(file == null ? "-" : file.length() + "@" + file.lastModified());
+            }
+            return fingerprint.toString();
+        }
+        LayerDigest digest = new LayerDigest();
+        WKBWriter writer = new WKBWriter();
+        SimpleFeatureIterator iterator = (SimpleFeatureIterator)featureSource.getFeatures(Query.ALL).features();
+        try{
+            while(iterator.hasNext()){
+                SimpleFeature feature = iterator.next();
+                Geometry geometry = (Geometry)feature.getDefaultGeometry();
+                digest.Add(feature.getID(), "", geometry == null ? new byte[0] : writer.write(geometry));
+            }
+        } finally {
+            iterator.close();
+        }
+        return digest.Hex();
+    }
+
+    /**
+     * File of the shapefile with the given extension, in lower or upper case, or null if there is none.
+     */
+    private File GetSiblingFile(String extension){
+        String path = shapefile.getPath();
+        String basePath = path.substring(0, path.length() - ".shp".length());
+        for(String candidate : new String[]{extension, extension.toUpperCase()}){
+            File file = new File(basePath + "." + candidate);
+            if(file.isFile()){
+                return file;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Envelope Bounds() throws IOException{
+        return featureSource.getBounds();
+    }
+
+    @Override
+    public SimpleFeatureType Schema(){
+        return (SimpleFeatureType)featureSource.getSchema();
+    }
+}
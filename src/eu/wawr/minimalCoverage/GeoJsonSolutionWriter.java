@@ -0,0 +1,94 @@
+package eu.wawr.minimalCoverage;
+
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.geojson.geom.GeometryJSON;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the features as a GeoJSON feature collection, one feature per line.
+ */
+public class GeoJsonSolutionWriter implements SolutionWriter {
+
+    private static final int decimals = 15;
+
+    private final Writer output;
+    private final FeatureJSON featureJson = new FeatureJSON(new GeometryJSON(decimals));
+    private final SimpleFeatureType type;
+    private final boolean rangeIds;
+    private long count;
+
+    public GeoJsonSolutionWriter(File file, SimpleFeatureType elementType, boolean rangeIds) throws IOException{
+        this.rangeIds = rangeIds;
+        type = ShapefileSolutionWriter.MakeType(elementType.getTypeName(), elementType, rangeIds);
+        output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        output.write("{\"type\": \"FeatureCollection\",");
+        String crs = GetCrsName(elementType.getCoordinateReferenceSystem());
+        if(crs != null){
+            output.write(" \"crs\": {\"type\": \"name\", \"properties\": {\"name\": " + MetricsSummary.Quote(crs) + "}},");
+        }
+        output.write(" \"features\": [");
+    }
+
+    /**
+     * Code the reference system is identified by, e.g. EPSG:4326, or null if it has none. Only codes
+     * the system already carries are used; looking them up would need the EPSG database.
+     */
+    private static String GetCrsName(CoordinateReferenceSystem crs){
+        if(crs == null || crs.getIdentifiers().isEmpty()){
+            return null;
+        }
+        return crs.getIdentifiers().iterator().next().toString();
+    }
+
+    @Override
+    public void Write(SimpleFeatureCollection features, String rangeId) throws IOException{
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        SimpleFeatureIterator iterator = features.features();
+        try{
+            while(iterator.hasNext()){
+                SimpleFeature feature = iterator.next();
+                builder.addAll(feature.getAttributes());
+                if(rangeIds){
+                    builder.add(rangeId);
+                }
+                output.write(count == 0 ? "\n" : ",\n");
+                output.write(featureJson.toString(builder.buildFeature(feature.getID())));
+                count++;
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Override
+    public long Count(){
+        return count;
+    }
+
+    @Override
+    public void Close() throws IOException{
+        try{
+            output.write("\n]}\n");
+        } finally {
+            output.close();
+        }
+    }
+
+    @Override
+    public void Discard(){
+        try{
+            output.close();
+        } catch(IOException e){
+            // the output is abandoned anyway
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.BitSet;
+
+/**
+ * Greedy set cover: repeatedly takes the subset covering the most uncovered pieces, ties going to
+ * the lowest subset index. Gains only ever shrink, so they are kept in a max-heap as upper bounds
+ * and only recomputed for the subset on top (lazy greedy). The heap lives in two arrays, so the
+ * rounds do not allocate.
+ *
+ * With costs or piece weights, the gain is the uncovered weight per unit of cost. A partial cover
+ * stops as soon as the covered weight reaches the target.
+ */
+public class GreedySetCoverSolver implements SetCoverSolver {
+
+    @Override
+    public SetCoverSolution Solve(SetCoverProblem problem){
+        return new SetCoverSolution(problem, Select(problem), problem.LowerBound());
+    }
+
+    public BitSet Select(SetCoverProblem problem){
+        BitSet selected = new BitSet(problem.SubsetCount());
+        boolean[] covered = new boolean[problem.PieceCount()];
+        double coveredWeight = 0;
+        for(int subset=0; subset<problem.SubsetCount(); subset++){
+            if(problem.IsFixed(subset)){
+                selected.set(subset);
+                coveredWeight += Cover(problem, subset, covered);
+            }
+        }
+        boolean partial = problem.IsPartial();
+        double targetWeight = problem.TargetWeight();
+        Heap heap = new Heap(problem.SubsetCount());
+        for(int subset=0; subset<problem.SubsetCount(); subset++){
+            if(!selected.get(subset)){
+                double gain = GetGain(problem, subset, covered);
+                if(gain > 0){
+                    heap.Push(subset, gain);
+                }
+            }
+        }
+        while(heap.size > 0 && !(partial && coveredWeight >= targetWeight)){
+            int subset = heap.subsets[0];
+            double gain = GetGain(problem, subset, covered);
+            heap.Pop();
+            if(gain == 0){
+                continue;
+            }
+            if(heap.size > 0 && IsBefore(heap.subsets[0], heap.gains[0], subset, gain)){
+                heap.Push(subset, gain);
+                continue;
+            }
+            selected.set(subset);
+            coveredWeight += Cover(problem, subset, covered);
+        }
+        return selected;
+    }
+
+    /** Marks the pieces of the subset covered and returns the weight newly covered. */
+    private static double Cover(SetCoverProblem problem, int subset, boolean[] covered){
+        double weight = 0;
+        for(int piece : problem.Subset(subset)){
+            if(!covered[piece]){
+                covered[piece] = true;
+                weight += problem.PieceWeight(piece);
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Uncovered weight of the subset per unit of cost. Unit weights and costs give the plain count
+     * of uncovered pieces; a free subset that covers anything goes first.
+     */
+    private static double GetGain(SetCoverProblem problem, int subset, boolean[] covered){
+        double weight = 0;
+        for(int piece : problem.Subset(subset)){
+            if(!covered[piece]){
+                weight += problem.PieceWeight(piece);
+            }
+        }
+        if(weight == 0){
+            return 0;
+        }
+        double cost = problem.Cost(subset);
+        return cost > 0 ? weight / cost : Double.POSITIVE_INFINITY;
+    }
+
+    private static boolean IsBefore(int subset, double gain, int otherSubset, double otherGain){
+        return gain > otherGain || (gain == otherGain && subset < otherSubset);
+    }
+
+    private static class Heap {
+
+        private final int[] subsets;
+        private final double[] gains;
+        private int size;
+
+        private Heap(int capacity){
+            subsets = new int[capacity];
+            gains = new double[capacity];
+        }
+
+        private void Push(int subset, double gain){
+            int i = size++;
+            while(i > 0){
+                int parent = (i - 1) / 2;
+                if(!IsBefore(subset, gain, subsets[parent], gains[parent])){
+                    break;
+                }
+                subsets[i] = subsets[parent];
+                gains[i] = gains[parent];
+                i = parent;
+            }
+            subsets[i] = subset;
+            gains[i] = gain;
+        }
+
+        private void Pop(){
+            int subset = subsets[--size];
+            double gain = gains[size];
+            int i = 0;
+            while(true){
+                int child = 2 * i + 1;
+                if(child >= size){
+                    break;
+                }
+                if(child + 1 < size && IsBefore(subsets[child + 1], gains[child + 1], subsets[child], gains[child])){
+                    child++;
+                }
+                if(!IsBefore(subsets[child], gains[child], subset, gain)){
+                    break;
+                }
+                subsets[i] = subsets[child];
+                gains[i] = gains[child];
+                i = child;
+            }
+            if(size > 0){
+                subsets[i] = subset;
+                gains[i] = gain;
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps string ids to dense ints 0..Size()-1, in order of first appearance.
+ */
+public class IdInterner {
+
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+
+    public int Intern(String id){
+        Integer index = indexes.get(id);
+        if(index == null){
+            index = ids.size();
+            indexes.put(id, index);
+            ids.add(id);
+        }
+        return index;
+    }
+
+    /** Index of the id, or -1 if it has not been interned. */
+    public int IndexOf(String id){
+        Integer index = indexes.get(id);
+        return index == null ? -1 : index;
+    }
+
+    public String Get(int index){
+        return ids.get(index);
+    }
+
+    public int Size(){
+        return ids.size();
+    }
+}
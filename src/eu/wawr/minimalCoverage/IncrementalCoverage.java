@@ -0,0 +1,285 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+import org.geotools.feature.SchemaException;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.*;
+
+/**
+ * Cover of one query that is kept up to date while elements are added, removed or changed, created
+ * by OptimalCoverageGenerator.SolveIncremental. A change only re-chops the pieces overlapping the old
+ * and new geometry of the element, patches the piece incidence, and repairs the cover around them:
+ * uncovered pieces are covered greedily, then selected neighbours made redundant are dropped. The
+ * result is a valid cover, but it may drift from what a full Solve would select, so long-lived
+ * instances should be rebuilt now and then.
+ *
+ * The elements layer of the generator is not modified; the caller keeps it in sync. Not thread-safe.
+ */
+public class IncrementalCoverage {
+
+    private final OptimalCoverageGenerator generator;
+    private final Geometry query;
+    private final Map<String, SimpleFeature> sourceFeatures = new HashMap<>();
+    private final Map<String, SimpleFeature> clippedFeatures = new HashMap<>();
+    private final Quadtree clippedIndex = new Quadtree();
+    private final Map<String, SimpleFeature> pieces = new HashMap<>();
+    private final Quadtree pieceIndex = new Quadtree();
+    private final IntersectionsMap pieceElements = new IntersectionsMap();
+    private final IntersectionsMap elementPieces = new IntersectionsMap();
+    private final Set<String> selected;
+    private final TopologyHelper topology;
+
+    IncrementalCoverage(OptimalCoverageGenerator generator, Geometry query, List<SimpleFeature> inRangeFeatures,
+                        List<SimpleFeature> clippedFeatures, List<SimpleFeature> pieces,
+                        IntersectionsMap intersectionsMap, Set<String> selected){
+        this.generator = generator;
+        this.query = query;
+        topology = generator.Topology();
+        for(SimpleFeature feature : inRangeFeatures){
+            sourceFeatures.put(feature.getID(), feature);
+        }
+        for(SimpleFeature feature : clippedFeatures){
+            AddClipped(feature);
+        }
+        for(SimpleFeature piece : pieces){
+            AddPiece(piece);
+        }
+        AddIncidence(intersectionsMap);
+        this.selected = new HashSet<>(selected);
+    }
+
+    /** Ids of the elements in the current cover. */
+    public Set<String> Ids(){
+        return Collections.unmodifiableSet(selected);
+    }
+
+    /**
+     * Adds the element, identified by its feature id, or replaces the element with the same id.
+     */
+    public CoverageDelta AddElement(SimpleFeature feature) throws SchemaException{
+        return Change(feature.getID(), feature);
+    }
+
+    public CoverageDelta UpdateElement(SimpleFeature feature) throws SchemaException{
+        return Change(feature.getID(), feature);
+    }
+
+    public CoverageDelta RemoveElement(String id) throws SchemaException{
+        return Change(id, null);
+    }
+
+    private CoverageDelta Change(String id, SimpleFeature feature) throws SchemaException{
+        Set<String> previous = new HashSet<>(selected);
+        List<Geometry> changedGeometries = new ArrayList<>();
+        SimpleFeature oldClipped = RemoveClipped(id);
+        if(oldClipped != null){
+            changedGeometries.add(topology.Reduce(oldClipped));
+        }
+        sourceFeatures.remove(id);
+        if(feature != null){
+            List<SimpleFeature> newClipped = generator.Clip(Collections.singletonList(feature), query);
+            if(!newClipped.isEmpty()){
+                sourceFeatures.put(id, feature);
+                AddClipped(newClipped.get(0));
+                changedGeometries.add(topology.Reduce(newClipped.get(0)));
+            }
+        }
+        selected.remove(id);
+        if(!changedGeometries.isEmpty()){
+            Set<String> newPieceIds = Rechop(id, changedGeometries);
+            Cover(newPieceIds);
+            RemoveRedundant(newPieceIds);
+        }
+        Set<String> added = new HashSet<>(selected);
+        added.removeAll(previous);
+        Set<String> removed = new HashSet<>(previous);
+        removed.removeAll(selected);
+        return new CoverageDelta(added, removed);
+    }
+
+    /**
+     * Replaces the pieces overlapping the changed geometries, and those of the changed element, by the
+     * pieces of the elements clipped to the region they covered together with the new geometry.
+     * Returns the ids of the new pieces.
+     */
+    private Set<String> Rechop(String id, List<Geometry> changedGeometries) throws SchemaException{
+        Map<String, SimpleFeature> affectedPieces = new HashMap<>();
+        for(String pieceId : Pieces(id)){
+            affectedPieces.put(pieceId, pieces.get(pieceId));
+        }
+        for(Geometry changedGeometry : changedGeometries){
+            PreparedTopology preparedGeometry = new PreparedTopology(topology, changedGeometry, changedGeometry);
+            for(Object item : pieceIndex.query(changedGeometry.getEnvelopeInternal())){
+                SimpleFeature piece = (SimpleFeature)item;
+                Geometry pieceGeometry = topology.Reduce(piece);
+                if(preparedGeometry.Intersects(pieceGeometry) && !preparedGeometry.IsDisjointOrTouching(pieceGeometry)){
+                    affectedPieces.put(GetId(piece), piece);
+                }
+            }
+        }
+        List<Geometry> regionParts = new ArrayList<>(changedGeometries);
+        for(SimpleFeature piece : affectedPieces.values()){
+            regionParts.add(topology.Reduce(piece));
+            RemovePiece(piece);
+        }
+        Geometry region = topology.Reduce(topology.Union(regionParts));
+        PreparedTopology preparedRegion = new PreparedTopology(topology, region, region);
+        List<SimpleFeature> neighbourSources = new ArrayList<>();
+        List<SimpleFeature> neighbours = new ArrayList<>();
+        for(Object item : clippedIndex.query(region.getEnvelopeInternal())){
+            SimpleFeature neighbour = (SimpleFeature)item;
+            Geometry neighbourGeometry = topology.Reduce(neighbour);
+            if(preparedRegion.Intersects(neighbourGeometry) && !preparedRegion.IsDisjointOrTouching(neighbourGeometry)){
+                neighbours.add(neighbour);
+                neighbourSources.add(sourceFeatures.get(GetId(neighbour)));
+            }
+        }
+        Collections.sort(neighbourSources, new Comparator<SimpleFeature>() {
+            @Override
+            public int compare(SimpleFeature feature, SimpleFeature otherFeature) {
+                return feature.getID().compareTo(otherFeature.getID());
+            }
+        });
+        List<SimpleFeature> newPieces = generator.Chop(generator.Clip(neighbourSources, region));
+        Set<String> newPieceIds = new HashSet<>();
+        for(SimpleFeature piece : newPieces){
+            AddPiece(piece);
+            newPieceIds.add(GetId(piece));
+        }
+        AddIncidence(new IntersectionsMap(newPieces, neighbours, topology));
+        return newPieceIds;
+    }
+
+    /**
+     * Adds the elements covering the most uncovered pieces until all the given pieces are covered.
+     */
+    private void Cover(Set<String> pieceIds){
+        Set<String> uncovered = new HashSet<>();
+        for(String pieceId : pieceIds){
+            if(!IsCovered(pieceId, null)){
+                uncovered.add(pieceId);
+            }
+        }
+        while(!uncovered.isEmpty()){
+            Map<String, Integer> gains = new TreeMap<>();
+            for(String pieceId : uncovered){
+                for(String elementId : Coverers(pieceId)){
+                    Integer gain = gains.get(elementId);
+                    gains.put(elementId, gain == null ? 1 : gain + 1);
+                }
+            }
+            if(gains.isEmpty()){
+                // pieces no element covers cannot be covered, e.g. slivers lost in precision reduction
+                return;
+            }
+            String best = null;
+            for(Map.Entry<String, Integer> gain : gains.entrySet()){
+                if(best == null || gain.getValue() > gains.get(best)){
+                    best = gain.getKey();
+                }
+            }
+            selected.add(best);
+            uncovered.removeAll(Pieces(best));
+        }
+    }
+
+    /**
+     * Drops selected elements covering any of the given pieces whose pieces are all covered by other
+     * selected elements, those with the fewest pieces first.
+     */
+    private void RemoveRedundant(Set<String> pieceIds){
+        Set<String> candidates = new TreeSet<>();
+        for(String pieceId : pieceIds){
+            for(String elementId : Coverers(pieceId)){
+                if(selected.contains(elementId)){
+                    candidates.add(elementId);
+                }
+            }
+        }
+        List<String> order = new ArrayList<>(candidates);
+        Collections.sort(order, new Comparator<String>() {
+            @Override
+            public int compare(String id, String otherId) {
+                return Integer.compare(Pieces(id).size(), Pieces(otherId).size());
+            }
+        });
+        for(String elementId : order){
+            boolean redundant = true;
+            for(String pieceId : Pieces(elementId)){
+                if(!IsCovered(pieceId, elementId)){
+                    redundant = false;
+                    break;
+                }
+            }
+            if(redundant){
+                selected.remove(elementId);
+            }
+        }
+    }
+
+    private boolean IsCovered(String pieceId, String exceptElementId){
+        for(String elementId : Coverers(pieceId)){
+            if(!elementId.equals(exceptElementId) && selected.contains(elementId)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> Coverers(String pieceId){
+        Set<String> coverers = pieceElements.Map().get(pieceId);
+        return coverers == null ? Collections.<String>emptySet() : coverers;
+    }
+
+    private Set<String> Pieces(String elementId){
+        Set<String> elementPieceIds = elementPieces.Map().get(elementId);
+        return elementPieceIds == null ? Collections.<String>emptySet() : elementPieceIds;
+    }
+
+    private void AddIncidence(IntersectionsMap intersectionsMap){
+        for(Map.Entry<String, Set<String>> entry : intersectionsMap.Map().entrySet()){
+            for(String elementId : entry.getValue()){
+                pieceElements.Add(entry.getKey(), elementId);
+                elementPieces.Add(elementId, entry.getKey());
+            }
+        }
+    }
+
+    private void AddClipped(SimpleFeature feature){
+        clippedFeatures.put(GetId(feature), feature);
+        clippedIndex.insert(topology.Reduce(feature).getEnvelopeInternal(), feature);
+    }
+
+    private SimpleFeature RemoveClipped(String id){
+        SimpleFeature feature = clippedFeatures.remove(id);
+        if(feature != null){
+            clippedIndex.remove(topology.Reduce(feature).getEnvelopeInternal(), feature);
+        }
+        return feature;
+    }
+
+    private void AddPiece(SimpleFeature piece){
+        pieces.put(GetId(piece), piece);
+        pieceIndex.insert(topology.Reduce(piece).getEnvelopeInternal(), piece);
+    }
+
+    private void RemovePiece(SimpleFeature piece){
+        String pieceId = GetId(piece);
+        pieces.remove(pieceId);
+        pieceIndex.remove(topology.Reduce(piece).getEnvelopeInternal(), piece);
+        Set<String> coverers = pieceElements.Map().get(pieceId);
+        if(coverers != null){
+            for(String elementId : new ArrayList<>(coverers)){
+                pieceElements.Remove(pieceId, elementId);
+                elementPieces.Remove(elementId, pieceId);
+            }
+        }
+    }
+
+    private static String GetId(SimpleFeature feature){
+        return feature.getProperty("id").getValue().toString();
+    }
+}
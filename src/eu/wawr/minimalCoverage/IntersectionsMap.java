@@ -1,32 +1,112 @@
 package eu.wawr.minimalCoverage;
 
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import org.geotools.feature.SchemaException;
 import org.opengis.feature.simple.SimpleFeature;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class IntersectionsMap {
 
+    private static final double envelopeMargin = 1/1000000000.0;
+
     private Map<String, Set<String>> map;
+    private long candidateCount;
+    private long hitCount;
 
     public IntersectionsMap(){
         map = new HashMap<>();
     }
 
-    public IntersectionsMap(List<SimpleFeature> keyFeatures, List<SimpleFeature> valueFeatures){
+    /**
+     * Maps every key feature to the value features covering it. The value features are indexed
+     * by envelope, so the exact coverage test only runs on pairs whose envelopes overlap.
+     */
+    public IntersectionsMap(List<SimpleFeature> keyFeatures, List<SimpleFeature> valueFeatures,
+                            TopologyHelper topology) throws SchemaException{
+        this(keyFeatures, valueFeatures, topology, null);
+    }
+
+    /**
+     * Same as above, with the rows for the key features computed concurrently on the given pool
+     * when it is not null.
+     */
+    public IntersectionsMap(List<SimpleFeature> keyFeatures, List<SimpleFeature> valueFeatures,
+                            final TopologyHelper topology, ForkJoinPool pool) throws SchemaException{
         map = new HashMap<>();
-        for(SimpleFeature keyFeature : keyFeatures){
-            String keyFeatureId = keyFeature.getProperty("id").getValue().toString();
-            Geometry keyGeometry = (Geometry)keyFeature.getDefaultGeometry();
-            for(SimpleFeature valueFeature : valueFeatures){
-                String valueFeatureId = valueFeature.getProperty("id").getValue().toString();
-                Geometry valueGeometry = (Geometry)valueFeature.getDefaultGeometry();
-                if(TopologyHelper.IsCovered(keyGeometry, valueGeometry)){
-                    Add(keyFeatureId, valueFeatureId);
+        final STRtree index = new STRtree();
+        final List<String> valueIds = new ArrayList<>();
+        final List<Geometry> valueGeometries = new ArrayList<>();
+        final List<Geometry> reducedValueGeometries = new ArrayList<>();
+        for(SimpleFeature valueFeature : valueFeatures){
+            Geometry valueGeometry = (Geometry)valueFeature.getDefaultGeometry();
+            index.insert(valueGeometry.getEnvelopeInternal(), valueIds.size());
+            valueIds.add(valueFeature.getProperty("id").getValue().toString());
+            valueGeometries.add(valueGeometry);
+            reducedValueGeometries.add(topology.Reduce(valueFeature));
+        }
+        index.build();
+        List<Row> rows = Parallel.Map(pool, keyFeatures, new Parallel.ChunkTask<SimpleFeature, Row>() {
+            @Override
+            public List<Row> Run(List<SimpleFeature> chunk) {
+                PreparedTopology[] valueTopologies = new PreparedTopology[valueIds.size()];
+                List<Row> chunkRows = new ArrayList<>();
+                for(SimpleFeature keyFeature : chunk){
+                    Geometry keyGeometry = (Geometry)keyFeature.getDefaultGeometry();
+                    Geometry reducedKeyGeometry = topology.Reduce(keyFeature);
+                    Row row = new Row();
+                    for(int valueIndex : GetCandidates(topology, reducedKeyGeometry, valueIds.size(), index)){
+                        if(valueTopologies[valueIndex] == null){
+                            valueTopologies[valueIndex] = new PreparedTopology(topology,
+                                    valueGeometries.get(valueIndex), reducedValueGeometries.get(valueIndex));
+                        }
+                        row.candidateCount++;
+                        if(valueTopologies[valueIndex].Covers(keyGeometry, reducedKeyGeometry)){
+                            row.valueIndexes.add(valueIndex);
+                        }
+                    }
+                    chunkRows.add(row);
                 }
+                return chunkRows;
+            }
+        });
+        for(int i=0; i<keyFeatures.size(); i++){
+            String keyFeatureId = keyFeatures.get(i).getProperty("id").getValue().toString();
+            Row row = rows.get(i);
+            candidateCount += row.candidateCount;
+            for(int valueIndex : row.valueIndexes){
+                hitCount++;
+                Add(keyFeatureId, valueIds.get(valueIndex));
+            }
+        }
+    }
+
+    private static class Row {
+        private long candidateCount;
+        private List<Integer> valueIndexes = new ArrayList<>();
+    }
+
+    private static List<Integer> GetCandidates(TopologyHelper topology, Geometry reducedKeyGeometry, int valueCount,
+                                               STRtree index){
+        List<Integer> candidates = new ArrayList<>();
+        // a negligible piece counts as covered by any value, overlapping or not
+        if(topology.IsNegligible(reducedKeyGeometry)){
+            for(int i=0; i<valueCount; i++){
+                candidates.add(i);
             }
+            return candidates;
+        }
+        Envelope envelope = new Envelope(reducedKeyGeometry.getEnvelopeInternal());
+        envelope.expandBy(envelopeMargin);
+        for(Object item : index.query(envelope)){
+            candidates.add((Integer)item);
         }
+        Collections.sort(candidates);
+        return candidates;
     }
 
 
@@ -34,6 +114,16 @@ public class IntersectionsMap {
         return map;
     }
 
+    /** Number of key/value pairs that passed the envelope filter and got an exact coverage test. */
+    public long CandidateCount(){
+        return candidateCount;
+    }
+
+    /** Number of candidate pairs where the key turned out to be covered by the value. */
+    public long HitCount(){
+        return hitCount;
+    }
+
     public void Add(String key, String value){
         if(map.containsKey(key)){
             map.get(key).add(value);
@@ -44,6 +134,17 @@ public class IntersectionsMap {
         }
     }
 
+    /** Removes the value from the key's set, and the key once its set is empty. */
+    public void Remove(String key, String value){
+        Set<String> valueSet = map.get(key);
+        if(valueSet != null){
+            valueSet.remove(value);
+            if(valueSet.isEmpty()){
+                map.remove(key);
+            }
+        }
+    }
+
     public IntersectionsMap Invert(){
         IntersectionsMap invertedIntersectionsMap = new IntersectionsMap();
         for(String key : map.keySet()){
@@ -53,4 +154,4 @@ public class IntersectionsMap {
         }
         return invertedIntersectionsMap;
     }
-}
\ No newline at end of file
+}
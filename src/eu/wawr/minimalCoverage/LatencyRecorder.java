@@ -0,0 +1,50 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the most recent requests, kept in a ring buffer of fixed capacity, with percentiles
+ * computed on demand.
+ */
+public class LatencyRecorder {
+
+    private final long[] nanos;
+    private long count;
+
+    public LatencyRecorder(int capacity){
+        nanos = new long[capacity];
+    }
+
+    public synchronized void Record(long latencyNanos){
+        nanos[(int)(count % nanos.length)] = latencyNanos;
+        count++;
+    }
+
+    /** Number of latencies recorded so far, including those no longer kept. */
+    public synchronized long Count(){
+        return count;
+    }
+
+    /**
+     * Latency in milliseconds below which the given fraction of the kept latencies lie, or 0 if none
+     * were recorded yet.
+     */
+    public double Percentile(double fraction){
+        return Percentiles(new double[]{fraction})[0];
+    }
+
+    public double[] Percentiles(double[] fractions){
+        long[] sorted;
+        synchronized(this){
+            sorted = Arrays.copyOf(nanos, (int)Math.min(count, nanos.length));
+        }
+        Arrays.sort(sorted);
+        double[] result = new double[fractions.length];
+        for(int i=0; i<fractions.length && sorted.length > 0; i++){
+            int index = (int)Math.ceil(fractions[i] * sorted.length) - 1;
+            result[i] = sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+        return result;
+    }
+}
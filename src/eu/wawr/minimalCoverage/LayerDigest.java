@@ -0,0 +1,33 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 over the elements of a layer in source order, used as its fingerprint. Layers holding the
+ * same ids and geometries get the same fingerprint whether they are kept in memory or in a snapshot.
+ */
+class LayerDigest {
+
+    private final MessageDigest digest;
+
+    LayerDigest(){
+        try{
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void Add(String featureId, String attributeId, byte[] wkb){
+        digest.update((featureId + ";" + attributeId + ";").getBytes(StandardCharsets.UTF_8));
+        digest.update(wkb);
+    }
+
+    String Hex(){
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+}
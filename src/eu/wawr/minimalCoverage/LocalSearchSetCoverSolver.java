@@ -0,0 +1,159 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Greedy cover improved by local search until no move helps or the time budget runs out.
+ * The moves are dropping a subset whose pieces are all covered by other selected subsets,
+ * and replacing two selected subsets by a single unselected one.
+ *
+ * The moves assume unit costs and a full cover, so weighted and partial problems get the greedy cover.
+ */
+public class LocalSearchSetCoverSolver implements SetCoverSolver {
+
+    private final long timeBudgetMillis;
+
+    public LocalSearchSetCoverSolver(long timeBudgetMillis){
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    @Override
+    public SetCoverSolution Solve(SetCoverProblem problem){
+        if(problem.IsWeighted() || problem.IsPartial()){
+            return new GreedySetCoverSolver().Solve(problem);
+        }
+        long deadline = System.nanoTime() + timeBudgetMillis * 1000000;
+        BitSet selected = new GreedySetCoverSolver().Select(problem);
+        Improve(problem, selected, deadline);
+        return new SetCoverSolution(problem, selected, problem.LowerBound());
+    }
+
+    /**
+     * Improves the cover in place. Returns false if the deadline stopped the search early.
+     */
+    static boolean Improve(SetCoverProblem problem, BitSet selected, long deadline){
+        int[] coverCounts = new int[problem.PieceCount()];
+        for(int subset = selected.nextSetBit(0); subset >= 0; subset = selected.nextSetBit(subset + 1)){
+            for(int piece : problem.Subset(subset)){
+                coverCounts[piece]++;
+            }
+        }
+        RemoveRedundant(problem, selected, coverCounts);
+        while(System.nanoTime() < deadline){
+            if(!SwapTwoForOne(problem, selected, coverCounts, deadline)){
+                return System.nanoTime() < deadline;
+            }
+            RemoveRedundant(problem, selected, coverCounts);
+        }
+        return false;
+    }
+
+    private static void RemoveRedundant(SetCoverProblem problem, BitSet selected, int[] coverCounts){
+        for(int subset = selected.nextSetBit(0); subset >= 0; subset = selected.nextSetBit(subset + 1)){
+            if(!problem.IsFixed(subset) && IsRedundant(problem.Subset(subset), coverCounts)){
+                Unselect(problem, selected, coverCounts, subset);
+            }
+        }
+    }
+
+    private static boolean IsRedundant(int[] pieces, int[] coverCounts){
+        for(int piece : pieces){
+            if(coverCounts[piece] < 2){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean SwapTwoForOne(SetCoverProblem problem, BitSet selected, int[] coverCounts, long deadline){
+        int[] candidates = new int[16];
+        for(int subset=0; subset<problem.SubsetCount(); subset++){
+            if(selected.get(subset)){
+                continue;
+            }
+            if(System.nanoTime() > deadline){
+                return false;
+            }
+            int[] pieces = problem.Subset(subset);
+            int candidateCount = 0;
+            for(int piece : pieces){
+                for(int other : problem.CoveringSubsets(piece)){
+                    if(selected.get(other) && !problem.IsFixed(other)
+                            && !Contains(candidates, candidateCount, other)
+                            && CoversUniquePieces(pieces, problem.Subset(other), coverCounts)){
+                        if(candidateCount == candidates.length){
+                            candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                        }
+                        candidates[candidateCount++] = other;
+                    }
+                }
+            }
+            for(int i=0; i<candidateCount; i++){
+                for(int j=i+1; j<candidateCount; j++){
+                    if(TrySwap(problem, selected, coverCounts, candidates[i], candidates[j], subset)){
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean Contains(int[] values, int count, int value){
+        for(int i=0; i<count; i++){
+            if(values[i] == value){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether all the pieces only the other subset covers are in the sorted pieces array. */
+    private static boolean CoversUniquePieces(int[] pieces, int[] otherPieces, int[] coverCounts){
+        for(int piece : otherPieces){
+            if(coverCounts[piece] == 1 && Arrays.binarySearch(pieces, piece) < 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean TrySwap(SetCoverProblem problem, BitSet selected, int[] coverCounts,
+                                   int first, int second, int replacement){
+        Unselect(problem, selected, coverCounts, first);
+        Unselect(problem, selected, coverCounts, second);
+        Select(problem, selected, coverCounts, replacement);
+        if(IsCovered(problem.Subset(first), coverCounts) && IsCovered(problem.Subset(second), coverCounts)){
+            return true;
+        }
+        Unselect(problem, selected, coverCounts, replacement);
+        Select(problem, selected, coverCounts, first);
+        Select(problem, selected, coverCounts, second);
+        return false;
+    }
+
+    private static boolean IsCovered(int[] pieces, int[] coverCounts){
+        for(int piece : pieces){
+            if(coverCounts[piece] == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void Select(SetCoverProblem problem, BitSet selected, int[] coverCounts, int subset){
+        selected.set(subset);
+        for(int piece : problem.Subset(subset)){
+            coverCounts[piece]++;
+        }
+    }
+
+    private static void Unselect(SetCoverProblem problem, BitSet selected, int[] coverCounts, int subset){
+        selected.clear(subset);
+        for(int piece : problem.Subset(subset)){
+            coverCounts[piece]--;
+        }
+    }
+}
@@ -5,57 +5,437 @@ import org.geotools.data.*;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.geotools.data.shapefile.ShapefileDataStore;
-import org.geotools.data.shapefile.ShapefileDataStoreFactory;
-import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.feature.FeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.SchemaException;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.filter.Filter;
-import org.opengis.filter.FilterFactory2;
-import org.opengis.filter.identity.FeatureId;
 
 
 public class Main {
 
     public static void main(String[] args) throws IOException, SchemaException{
-        if(args.length != 4){
+        Map<String, String> options = readOptions(args, 4);
+        if(args.length < 4 || options == null){
             System.out.println("Use:");
-            System.out.println("java -jar MinimalCoverage.jar <elements_shapefile> <range_shapefile> <id_attribute> <output_path>");
+            System.out.println("java -jar MinimalCoverage.jar <elements_shapefile> <range_shapefile> <id_attribute> <output_path> [options]");
+            System.out.println("java -jar MinimalCoverage.jar --serve <port> <elements_shapefile> <id_attribute> [options]");
+            System.out.println("java -jar MinimalCoverage.jar --snapshot <elements_shapefile> <id_attribute> <snapshot_path>");
+            System.out.println("The elements may be given as a snapshot written by --snapshot instead of a shapefile.");
+            System.out.println("The output is a shapefile, or GeoJSON or WKB lines if output_path ends with .geojson or .wkb.");
+            System.out.println("Options:");
+            System.out.println("--engine pairwise|arrangement    chopping engine (default: pairwise)");
+            System.out.println("--threads <count>                worker threads for the coverage stages (default: 1)");
+            System.out.println("--solver greedy|local|exact      set cover solver (default: greedy)");
+            System.out.println("--time-budget <milliseconds>     time budget of the local and exact solvers (default: 10000)");
+            System.out.println("--precision fixed|layer          snap to a fixed 1e-11 grid (default) or to a grid derived from");
+            System.out.println("                                 the reference system and extent of the elements");
+            System.out.println("--cost-attribute <name>          minimise the total of this numeric element attribute");
+            System.out.println("                                 instead of the number of elements");
+            System.out.println("--coverage-target <fraction>     stop once this fraction of the range area is covered (default: 1)");
+            System.out.println("--sliver-area <area>             drop pieces smaller than this instead of covering them");
+            System.out.println("--batch per-range|combined       cover every range feature, writing one output per range");
+            System.out.println("                                 or a single output with a range_id attribute");
+            System.out.println("--workers <count>                ranges processed concurrently in batch mode (default: 1)");
+            System.out.println("                                 or requests served concurrently (default: processor count)");
+            System.out.println("--batch-window <milliseconds>    when serving, read the elements of the requests arriving");
+            System.out.println("                                 within this time of each other together (default: 2)");
+            System.out.println("--tile-size <units>              cover the range tile by tile on a grid with this cell size");
+            System.out.println("--element-cache <megabytes>      keep the elements in memory up to this size; batch mode");
+            System.out.println("                                 always caches them, up to half of the heap by default");
+            System.out.println("--metrics <path>|-               write per-stage times, counts and overlay statistics");
+            System.out.println("                                 as JSON to the file or to the standard output; when serving,");
+            System.out.println("                                 they are included in /stats");
+            System.out.println("--cache <entries>                cache up to this many covers of repeated ranges (default: 1000)");
+            System.out.println("--cache-file <path>              load the cache from this file and save it back when done");
             System.out.println("Example:");
             System.out.println("java -jar MinimalCoverage.jar elements.shp range.shp id output.shp");
             return;
         }
+        if(args[0].equals("--snapshot")){
+            writeSnapshot(args[1], args[2], args[3]);
+            return;
+        }
+        if(args[0].equals("--serve")){
+            runServer(Integer.parseInt(args[1]), args[2], args[3], options);
+            return;
+        }
+        if(options.containsKey("tile-size")){
+            // fail before anything is read rather than on the first range
+            readTileSize(options.get("tile-size"));
+        }
         String elementsFile = args[0];
         String rangeFile = args[1];
         String uniqueIdentifierAttributeName = args[2];
         String outputPath = args[3];
-        FeatureSource elementsSource = readShapefile(elementsFile);
         FeatureSource rangeSource = readShapefile(rangeFile);
+        MetricsSummary metrics = options.containsKey("metrics") ? new MetricsSummary() : null;
+        CoverageCache cache = loadCache(options);
+        if(options.containsKey("batch")){
+            ElementSource elements = openElements(elementsFile, uniqueIdentifierAttributeName, options, true);
+            runBatch(elements, elementsFile, rangeSource, uniqueIdentifierAttributeName, outputPath, options,
+                    metrics, cache);
+            writeMetrics(metrics, options);
+            saveCache(cache, options);
+            return;
+        }
         FeatureIterator iterator =  rangeSource.getFeatures().features();
         try{
             SimpleFeature rangeFeature = (SimpleFeature)iterator.next();
             Geometry rangeGeometry = (Geometry)rangeFeature.getDefaultGeometry();
-            OptimalCoverageGenerator optimalCoverageGenerator = new OptimalCoverageGenerator(
-                    elementsSource, uniqueIdentifierAttributeName);
-            Set<String> result = optimalCoverageGenerator.Generate(rangeGeometry);
-            FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
-            Set<FeatureId> featureIds = new HashSet<>();
-            for(String id : result){
-                featureIds.add(filterFactory.featureId(id));
+            ElementSource elements = openElements(elementsFile, uniqueIdentifierAttributeName, options,
+                    options.containsKey("element-cache"));
+            OptimalCoverageGenerator optimalCoverageGenerator = createGenerator(
+                    elements, elementsFile, uniqueIdentifierAttributeName, options);
+            optimalCoverageGenerator.SetMetrics(metrics);
+            optimalCoverageGenerator.SetCache(cache);
+            SetCoverSolution solution;
+            try{
+                solution = solve(optimalCoverageGenerator, rangeGeometry, options);
+            } finally {
+                optimalCoverageGenerator.Close();
+            }
+            System.out.println("Selected elements: " + solution);
+            writeSolution(elements, solution, outputPath, metrics);
+        } finally {
+            iterator.close();
+        }
+        writeMetrics(metrics, options);
+        saveCache(cache, options);
+    }
+
+    private static OptimalCoverageGenerator createGenerator(ElementSource elements, String elementsFile,
+                                                            String idAttribute, Map<String, String> options)
+            throws IOException, SchemaException{
+        OptimalCoverageGenerator optimalCoverageGenerator = new OptimalCoverageGenerator(elements, idAttribute);
+        if(options.containsKey("engine")){
+            optimalCoverageGenerator.SetChoppingEngine(readChoppingEngine(options.get("engine")));
+        }
+        if(options.containsKey("threads")){
+            optimalCoverageGenerator.SetParallelism(Integer.parseInt(options.get("threads")));
+        }
+        if(options.containsKey("solver")){
+            optimalCoverageGenerator.SetSolver(readSolver(options.get("solver"),
+                    Long.parseLong(getOption(options, "time-budget", "10000"))));
+        }
+        if(options.containsKey("precision")){
+            optimalCoverageGenerator.SetPrecisionPolicy(readPrecisionPolicy(options.get("precision"), elements));
+        }
+        if(options.containsKey("cost-attribute")){
+            optimalCoverageGenerator.SetCosts(readCosts(elementsFile, options.get("cost-attribute")));
+        }
+        if(options.containsKey("coverage-target")){
+            optimalCoverageGenerator.SetCoverageTarget(readCoverageTarget(options.get("coverage-target")));
+        }
+        if(options.containsKey("sliver-area")){
+            optimalCoverageGenerator.SetSliverArea(readSliverArea(options.get("sliver-area")));
+        }
+        return optimalCoverageGenerator;
+    }
+
+    private static SetCoverSolution solve(OptimalCoverageGenerator optimalCoverageGenerator, Geometry range,
+                                          Map<String, String> options) throws IOException, SchemaException{
+        if(options.containsKey("tile-size")){
+            return optimalCoverageGenerator.SolveTiled(range, readTileSize(options.get("tile-size")));
+        }
+        return optimalCoverageGenerator.Solve(range);
+    }
+
+    /**
+     * Covers every range feature. The elements are read and indexed once and shared by all ranges,
+     * which are processed concurrently by the given number of workers. Writes one shapefile per range,
+     * named after the range feature id, or a single shapefile with a range_id attribute.
+     */
+    private static void runBatch(final ElementSource elements, String elementsFile, FeatureSource rangeSource,
+                                 String idAttribute, final String outputPath, Map<String, String> options,
+                                 final CoverageMetrics metrics, CoverageCache cache) throws IOException, SchemaException{
+        final boolean combined = readBatchMode(options.get("batch"));
+        final OptimalCoverageGenerator optimalCoverageGenerator = createGenerator(elements, elementsFile, idAttribute,
+                options);
+        optimalCoverageGenerator.SetMetrics(metrics);
+        optimalCoverageGenerator.SetCache(cache);
+        List<SimpleFeature> rangeFeatures = new ArrayList<>();
+        FeatureIterator iterator = rangeSource.getFeatures().features();
+        try{
+            while(iterator.hasNext()){
+                rangeFeatures.add((SimpleFeature)iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(Integer.parseInt(getOption(options, "workers", "1")));
+        try{
+            List<Future<SetCoverSolution>> solutions = new ArrayList<>();
+            for(final SimpleFeature rangeFeature : rangeFeatures){
+                solutions.add(workers.submit(new Callable<SetCoverSolution>() {
+                    @Override
+                    public SetCoverSolution call() throws Exception {
+                        SetCoverSolution solution = solve(optimalCoverageGenerator,
+                                (Geometry)rangeFeature.getDefaultGeometry(), options);
+                        if(!combined){
+                            writeSolution(elements, solution,
+                                    getBatchOutputPath(outputPath, rangeFeature.getID()), metrics);
+                        }
+                        return solution;
+                    }
+                }));
+            }
+            SolutionWriter combinedWriter = combined ? openSolutionWriter(outputPath,
+                    elements.Schema(), true) : null;
+            StageRecorder recorder = new StageRecorder(metrics);
+            try{
+                for(int i=0; i<rangeFeatures.size(); i++){
+                    String rangeId = rangeFeatures.get(i).getID();
+                    SetCoverSolution solution = getSolution(solutions.get(i));
+                    System.out.println("Range " + rangeId + " selected elements: " + solution);
+                    if(combined){
+                        recorder.Start("write");
+                        combinedWriter.Write(elements.GetFeatures(solution.Ids()), rangeId);
+                        recorder.End(solution.Size(), solution.Size());
+                    }
+                }
+                if(combined){
+                    combinedWriter.Close();
+                }
+            } catch(IOException | SchemaException | RuntimeException e){
+                if(combined){
+                    combinedWriter.Discard();
+                }
+                throw e;
+            }
+        } finally {
+            workers.shutdown();
+            optimalCoverageGenerator.Close();
+        }
+    }
+
+    /**
+     * Keeps the elements loaded and serves covers of ranges posted to /cover on the loopback interface,
+     * until the process is stopped.
+     */
+    private static void runServer(int port, String elementsFile, String idAttribute,
+                                  final Map<String, String> options) throws IOException, SchemaException{
+        long batchWindow = readBatchWindow(getOption(options, "batch-window", "2"));
+        ElementSource elements = openElements(elementsFile, idAttribute, options, true);
+        OptimalCoverageGenerator optimalCoverageGenerator = createGenerator(elements, elementsFile, idAttribute,
+                options);
+        MetricsSummary metrics = options.containsKey("metrics") ? new MetricsSummary() : null;
+        optimalCoverageGenerator.SetMetrics(metrics);
+        final CoverageCache cache = loadCache(options);
+        optimalCoverageGenerator.SetCache(cache);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try{
+                    saveCache(cache, options);
+                } catch(IOException e){
+                    System.out.println("Cannot save the cache: " + e.getMessage());
+                }
+            }
+        });
+        int workers = Integer.parseInt(getOption(options, "workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        CoverageServer server = new CoverageServer(optimalCoverageGenerator, metrics, cache,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), workers, batchWindow);
+        server.Start();
+        System.out.println("Serving " + elementsFile + " at http://localhost:" + server.Address().getPort() + "/cover");
+    }
+
+    /**
+     * Elements of a snapshot, or of a shapefile, either loaded into memory (see loadElements) or read
+     * from the shapefile on every query.
+     */
+    private static ElementSource openElements(String elementsFile, String idAttribute, Map<String, String> options,
+                                              boolean load) throws IOException{
+        if(elementsFile.endsWith(ElementSnapshot.extension)){
+            return ElementSnapshot.Open(new File(elementsFile));
+        }
+        FeatureSource elementsSource = readShapefile(elementsFile);
+        return load
+                ? loadElements(elementsSource, new File(elementsFile), idAttribute, options)
+                : new FeatureSourceElements(elementsSource, new File(elementsFile));
+    }
+
+    private static void writeSnapshot(String elementsFile, String idAttribute, String snapshotPath) throws IOException{
+        if(!snapshotPath.endsWith(ElementSnapshot.extension)){
+            snapshotPath += ElementSnapshot.extension;
+        }
+        ElementSnapshot.Write(readShapefile(elementsFile), idAttribute, new File(snapshotPath));
+        System.out.println("Snapshot written to " + snapshotPath);
+    }
+
+    /**
+     * Elements kept in memory, unless they would take more than --element-cache megabytes
+     * (half of the maximum heap by default), in which case they are streamed from the shapefile.
+     */
+    private static ElementSource loadElements(FeatureSource elementsSource, File elementsFile, String idAttribute,
+                                              Map<String, String> options) throws IOException{
+        long maxBytes = options.containsKey("element-cache")
+                ? Long.parseLong(options.get("element-cache")) * 1024 * 1024
+                : Runtime.getRuntime().maxMemory() / 2;
+        ElementSource elements = ElementStore.Load(elementsSource, idAttribute, maxBytes);
+        if(!(elements instanceof ElementStore)){
+            System.out.println("Elements exceed the in-memory cache limit, reading them from the shapefile");
+            return new FeatureSourceElements(elementsSource, elementsFile);
+        }
+        return elements;
+    }
+
+    private static boolean readBatchMode(String mode){
+        switch(mode){
+            case "per-range":
+                return false;
+            case "combined":
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown batch mode: " + mode);
+        }
+    }
+
+    private static String getBatchOutputPath(String outputPath, String rangeId){
+        int extensionStart = outputPath.lastIndexOf('.');
+        boolean hasExtension = extensionStart > outputPath.lastIndexOf(File.separatorChar);
+        String base = hasExtension ? outputPath.substring(0, extensionStart) : outputPath;
+        String extension = hasExtension ? outputPath.substring(extensionStart) : ".shp";
+        return base + "_" + rangeId.replaceAll("[^A-Za-z0-9_-]", "_") + extension;
+    }
+
+    private static SetCoverSolution getSolution(Future<SetCoverSolution> future) throws IOException, SchemaException{
+        try{
+            return future.get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch(ExecutionException e){
+            if(e.getCause() instanceof IOException){
+                throw (IOException)e.getCause();
+            } else if(e.getCause() instanceof SchemaException){
+                throw (SchemaException)e.getCause();
+            } else if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    static Map<String, String> readOptions(String[] args, int firstOption){
+        Map<String, String> options = new HashMap<>();
+        for(int i=firstOption; i<args.length; i+=2){
+            if(!args[i].startsWith("--") || i+1 == args.length){
+                return null;
+            }
+            options.put(args[i].substring(2), args[i+1]);
+        }
+        return options;
+    }
+
+    static String getOption(Map<String, String> options, String name, String defaultValue){
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+
+    private static SetCoverSolver readSolver(String name, long timeBudgetMillis){
+        switch(name){
+            case "greedy":
+                return new GreedySetCoverSolver();
+            case "local":
+                return new LocalSearchSetCoverSolver(timeBudgetMillis);
+            case "exact":
+                return new BranchAndBoundSetCoverSolver(timeBudgetMillis);
+            default:
+                throw new IllegalArgumentException("Unknown solver: " + name);
+        }
+    }
+
+    private static PrecisionPolicy readPrecisionPolicy(String name, ElementSource elements) throws IOException{
+        switch(name){
+            case "fixed":
+                return PrecisionPolicy.Fixed();
+            case "layer":
+                return PrecisionPolicy.ForLayer(
+                        elements.Schema().getCoordinateReferenceSystem(),
+                        elements.Bounds());
+            default:
+                throw new IllegalArgumentException("Unknown precision policy: " + name);
+        }
+    }
+
+    /**
+     * Costs of the elements by feature id, read from the attribute of the elements shapefile. Snapshots
+     * only keep ids and geometries, so they have no costs.
+     */
+    private static Map<String, Double> readCosts(String elementsFile, String attribute) throws IOException{
+        if(elementsFile.endsWith(ElementSnapshot.extension)){
+            throw new IllegalArgumentException("Costs cannot be read from a snapshot, give the elements shapefile");
+        }
+        Map<String, Double> costs = new HashMap<>();
+        FeatureIterator iterator = readShapefile(elementsFile).getFeatures().features();
+        try{
+            while(iterator.hasNext()){
+                SimpleFeature feature = (SimpleFeature)iterator.next();
+                Object value = feature.getAttribute(attribute);
+                if(!(value instanceof Number) || ((Number)value).doubleValue() < 0){
+                    throw new IllegalArgumentException("Element " + feature.getID() + " has no non-negative "
+                            + attribute + " cost: " + value);
+                }
+                costs.put(feature.getID(), ((Number)value).doubleValue());
             }
-            Filter filter = filterFactory.id(featureIds);
-            FeatureCollection features = elementsSource.getFeatures(filter);
-            writeShapefile(features, outputPath);
         } finally {
             iterator.close();
         }
+        return costs;
+    }
+
+    private static double readCoverageTarget(String value){
+        double coverageTarget = Double.parseDouble(value);
+        if(!(coverageTarget > 0 && coverageTarget <= 1)){
+            throw new IllegalArgumentException("--coverage-target must be a fraction in (0, 1]: " + value);
+        }
+        return coverageTarget;
+    }
+
+    private static double readSliverArea(String value){
+        double sliverArea = Double.parseDouble(value);
+        if(!(sliverArea >= 0) || Double.isInfinite(sliverArea)){
+            throw new IllegalArgumentException("--sliver-area must be a finite area of at least 0: " + value);
+        }
+        return sliverArea;
+    }
+
+    private static long readBatchWindow(String value){
+        long batchWindow = Long.parseLong(value);
+        if(batchWindow < 0){
+            throw new IllegalArgumentException("--batch-window must be at least 0 milliseconds: " + value);
+        }
+        return batchWindow;
+    }
+
+    private static double readTileSize(String value){
+        double tileSize = Double.parseDouble(value);
+        if(!(tileSize > 0) || Double.isInfinite(tileSize)){
+            throw new IllegalArgumentException("--tile-size must be a finite positive number: " + value);
+        }
+        return tileSize;
+    }
+
+    static ChoppingEngine readChoppingEngine(String name){
+        for(ChoppingEngine engine : ChoppingEngine.values()){
+            if(engine.name().equalsIgnoreCase(name)){
+                return engine;
+            }
+        }
+        throw new IllegalArgumentException("Unknown chopping engine: " + name);
     }
 
     private static FeatureSource readShapefile(String filename){
@@ -69,23 +449,72 @@ public class Main {
         }
     }
 
-    public static void writeShapefile(FeatureCollection collection, String filename) throws IOException, SchemaException{
-        File newFile = new File(filename);
-        if(!newFile.createNewFile()){
-            newFile.delete();
-            newFile.createNewFile();
+    private static void writeSolution(ElementSource elements, SetCoverSolution solution, String filename,
+                                      CoverageMetrics metrics) throws IOException, SchemaException{
+        StageRecorder recorder = new StageRecorder(metrics);
+        recorder.Start("write");
+        SimpleFeatureCollection features = elements.GetFeatures(solution.Ids());
+        SolutionWriter writer = openSolutionWriter(filename, features.getSchema(), false);
+        try{
+            writer.Write(features, null);
+            writer.Close();
+        } catch(IOException | RuntimeException e){
+            writer.Discard();
+            throw e;
+        }
+        recorder.End(solution.Size(), writer.Count());
+    }
+
+    /**
+     * Writer chosen by the extension of the file: GeoJSON for .geojson and .json, WKB lines for .wkb,
+     * and a shapefile otherwise.
+     */
+    private static SolutionWriter openSolutionWriter(String filename, SimpleFeatureType elementType,
+                                                     boolean rangeIds) throws IOException{
+        File file = new File(filename);
+        String name = filename.toLowerCase();
+        if(name.endsWith(".geojson") || name.endsWith(".json")){
+            return new GeoJsonSolutionWriter(file, elementType, rangeIds);
+        }
+        if(name.endsWith(".wkb")){
+            return new WkbLinesSolutionWriter(file, rangeIds);
+        }
+        return new ShapefileSolutionWriter(file, elementType, rangeIds);
+    }
+
+    /**
+     * Cache asked for by --cache or --cache-file, filled from the cache file if there is one, or null.
+     */
+    private static CoverageCache loadCache(Map<String, String> options) throws IOException{
+        if(!options.containsKey("cache") && !options.containsKey("cache-file")){
+            return null;
+        }
+        int capacity = Integer.parseInt(getOption(options, "cache", "1000"));
+        if(!options.containsKey("cache-file")){
+            return new CoverageCache(capacity);
+        }
+        return CoverageCache.Load(new File(options.get("cache-file")), capacity);
+    }
+
+    private static void saveCache(CoverageCache cache, Map<String, String> options) throws IOException{
+        if(cache == null){
+            return;
+        }
+        System.out.println("Cache: " + cache);
+        if(options.containsKey("cache-file")){
+            cache.Save(new File(options.get("cache-file")));
         }
-        ShapefileDataStoreFactory dataStoreFactory = new ShapefileDataStoreFactory();
-        Map<String, Serializable> parameters = new HashMap<>();
-        parameters.put("url", newFile.toURI().toURL());
-        parameters.put("create spatial filter", Boolean.TRUE);
-        ShapefileDataStore shapeFileDataStore = (ShapefileDataStore)dataStoreFactory.createNewDataStore(parameters);
-        SimpleFeatureType type = DataUtilities.createType("POLYGON", "the_geom:Polygon,id:String");
-        type = DataUtilities.createSubType(type, null, DefaultGeographicCRS.WGS84);
-        shapeFileDataStore.createSchema(type);
-        FeatureSource featureSource = shapeFileDataStore.getFeatureSource();
-        FeatureStore featureStore = (FeatureStore)featureSource;
-        featureStore.addFeatures(collection);
     }
-}
 
+    private static void writeMetrics(MetricsSummary metrics, Map<String, String> options) throws IOException{
+        if(metrics == null){
+            return;
+        }
+        String path = options.get("metrics");
+        if(path.equals("-")){
+            System.out.print(metrics.ToJson());
+        } else {
+            Files.write(Paths.get(path), metrics.ToJson().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.*;
+
+/**
+ * CoverageMetrics adding up the stages of all runs by stage name, in the order the stages were first
+ * seen, and rendering them as JSON.
+ */
+public class MetricsSummary implements CoverageMetrics {
+
+    private static final int maxFailureMessages = 10;
+
+    // calls, nanos, input, output, overlays, reductions, overlay failures, failed calls
+    private final Map<String, long[]> totals = new LinkedHashMap<>();
+    private final List<String> failureMessages = new ArrayList<>();
+
+    @Override
+    public synchronized void StageCompleted(StageMetrics stage){
+        long[] total = totals.get(stage.Name());
+        if(total == null){
+            total = new long[8];
+            totals.put(stage.Name(), total);
+        }
+        total[0]++;
+        total[1] += stage.Nanos();
+        total[2] += Math.max(stage.InputCount(), 0);
+        total[3] += Math.max(stage.OutputCount(), 0);
+        total[4] += stage.OverlayCount();
+        total[5] += stage.ReduceCount();
+        total[6] += stage.OverlayFailureCount();
+        if(stage.Failure() != null){
+            total[7]++;
+            if(failureMessages.size() < maxFailureMessages){
+                failureMessages.add(stage.Name() + ": " + stage.Failure());
+            }
+        }
+    }
+
+    public synchronized String ToJson(){
+        StringBuilder json = new StringBuilder("{\n  \"stages\": [");
+        String separator = "\n";
+        for(Map.Entry<String, long[]> entry : totals.entrySet()){
+            long[] total = entry.getValue();
+            json.append(separator).append(String.format(Locale.ROOT,
+                    "    {\"name\": %s, \"calls\": %d, \"wall_ms\": %.3f, \"input\": %d, \"output\": %d, " +
+                    "\"overlays\": %d, \"reductions\": %d, \"overlay_failures\": %d, \"failures\": %d}",
+                    Quote(entry.getKey()), total[0], total[1] / 1e6, total[2], total[3],
+                    total[4], total[5], total[6], total[7]));
+            separator = ",\n";
+        }
+        json.append("\n  ],\n  \"failures\": [");
+        separator = "\n";
+        for(String message : failureMessages){
+            json.append(separator).append("    ").append(Quote(message));
+            separator = ",\n";
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    static String Quote(String text){
+        StringBuilder quoted = new StringBuilder("\"");
+        for(char c : text.toCharArray()){
+            if(c == '"' || c == '\\'){
+                quoted.append('\\').append(c);
+            } else if(c < 0x20){
+                quoted.append(String.format("\\u%04x", (int)c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -1,157 +1,742 @@
 package eu.wawr.minimalCoverage;
 
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.operation.overlay.OverlayOp;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.feature.DefaultFeatureCollection;
-import org.geotools.feature.FeatureCollection;
-import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.SchemaException;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.FeatureType;
-import org.opengis.filter.Filter;
-import org.opengis.filter.FilterFactory2;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class OptimalCoverageGenerator {
 
-    private FeatureSource featureSource;
+    private ElementSource elements;
     private SimpleFeatureType TYPE;
-    private FilterFactory2 filterFactory;
-    private final double tolerance = 1/10000000000.0;
     private String idAttribute;
+    private ChoppingEngine choppingEngine = ChoppingEngine.Pairwise;
+    private ForkJoinPool pool;
+    private boolean ownsPool;
+    private SetCoverSolver solver = new GreedySetCoverSolver();
+    private CoverageMetrics metrics;
+    private CoverageCache cache;
+    private TopologyHelper topology = new TopologyHelper(PrecisionPolicy.Fixed());
+    private Map<String, Double> costs;
+    private String costsDigest = "unit";
+    private double coverageTarget = 1;
+    private double sliverArea;
 
     public OptimalCoverageGenerator(FeatureSource featureSource, String idAttribute) throws SchemaException{
-        this.featureSource = featureSource;
+        this(new FeatureSourceElements(featureSource), idAttribute);
+    }
+
+    public OptimalCoverageGenerator(ElementSource elements, String idAttribute) throws SchemaException{
+        this.elements = elements;
         this.idAttribute = idAttribute;
         TYPE = DataUtilities.createType("POLYGON", "the_geom:Polygon,id:String");
 //        TYPE = DataUtilities.createSubType(TYPE, null, DefaultGeographicCRS.WGS84);
-        filterFactory = CommonFactoryFinder.getFilterFactory2();
+    }
+
+    /**
+     * Copy with the same settings, sharing the pool without owning it.
+     */
+    private OptimalCoverageGenerator(OptimalCoverageGenerator generator){
+        elements = generator.elements;
+        TYPE = generator.TYPE;
+        idAttribute = generator.idAttribute;
+        choppingEngine = generator.choppingEngine;
+        pool = generator.pool;
+        solver = generator.solver;
+        metrics = generator.metrics;
+        cache = generator.cache;
+        topology = generator.topology;
+        costs = generator.costs;
+        costsDigest = generator.costsDigest;
+        coverageTarget = generator.coverageTarget;
+        sliverArea = generator.sliverArea;
+    }
+
+    /**
+     * Precision used for reduction and overlays, PrecisionPolicy.Fixed() by default.
+     */
+    public void SetPrecisionPolicy(PrecisionPolicy policy){
+        topology = new TopologyHelper(policy);
+    }
+
+    TopologyHelper Topology(){
+        return topology;
+    }
+
+    ElementSource Elements(){
+        return elements;
+    }
+
+    /**
+     * Costs of the elements by feature id, for covers of least total cost rather than fewest elements.
+     * Elements without a cost cost 1. Pass null to go back to counting elements.
+     */
+    public void SetCosts(Map<String, Double> costs){
+        this.costs = costs;
+        costsDigest = costs == null ? "unit" : GetDigest(costs);
+    }
+
+    /**
+     * SHA-256 of the costs sorted by id, so that covers cached under other costs are never reused.
+     */
+    private static String GetDigest(Map<String, Double> costs){
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+        for(Map.Entry<String, Double> cost : new TreeMap<>(costs).entrySet()){
+            byte[] id = cost.getKey().getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4 + id.length + 8)
+                    .putInt(id.length).put(id).putDouble(cost.getValue()).array());
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * Fraction of the query area a cover has to reach, 1 by default. Below 1 the solver stops as soon
+     * as the selected elements cover that much, and elements are no longer fixed in the cover for
+     * having an uncovered part.
+     */
+    public void SetCoverageTarget(double coverageTarget){
+        if(!(coverageTarget > 0 && coverageTarget <= 1)){
+            throw new IllegalArgumentException("Coverage target must be in (0, 1]: " + coverageTarget);
+        }
+        this.coverageTarget = coverageTarget;
+    }
+
+    /**
+     * Pieces cut off by chopping whose area is below this are dropped rather than covered, 0 by default.
+     * Elements are never dropped, only the slivers between their boundaries.
+     */
+    public void SetSliverArea(double sliverArea){
+        if(!(sliverArea >= 0) || Double.isInfinite(sliverArea)){
+            throw new IllegalArgumentException("Sliver area must be finite and not negative: " + sliverArea);
+        }
+        this.sliverArea = sliverArea;
+    }
+
+    public void SetChoppingEngine(ChoppingEngine choppingEngine){
+        this.choppingEngine = choppingEngine;
+    }
+
+    /**
+     * Runs the clip, chop, coverage and intersection stages on the given pool. The result is the same
+     * as the sequential one; pass null to go back to running everything on the calling thread.
+     */
+    public void SetPool(ForkJoinPool pool){
+        if(ownsPool && pool != this.pool){
+            this.pool.shutdown();
+        }
+        this.pool = pool;
+        ownsPool = false;
+    }
+
+    /**
+     * Runs the stages on a pool of the given number of threads, created and owned by the generator. The
+     * pool is kept while the parallelism stays the same, and shut down when it changes or on Close.
+     */
+    public void SetParallelism(int parallelism){
+        if(ownsPool && pool.getParallelism() == parallelism){
+            return;
+        }
+        SetPool(parallelism > 1 ? new ForkJoinPool(parallelism) : null);
+        ownsPool = pool != null;
+    }
+
+    /**
+     * Shuts down the pool created by SetParallelism, if any; later runs use the calling thread. Pools
+     * given to SetPool belong to the caller and are left running.
+     */
+    public void Close(){
+        SetPool(null);
+    }
+
+    public void SetSolver(SetCoverSolver solver){
+        this.solver = solver;
+    }
+
+    /**
+     * Reports the wall time, cardinalities and topology counts of every stage of every run to the
+     * listener. Each run counts its topology operations on its own TopologyHelper, so concurrent runs
+     * do not add into each other's counts. Pass null to stop reporting and counting.
+     */
+    public void SetMetrics(CoverageMetrics metrics){
+        this.metrics = metrics;
+    }
+
+    /**
+     * The generator itself, or with metrics a copy whose TopologyHelper counts the operations of a
+     * single run.
+     */
+    private OptimalCoverageGenerator ForRun(){
+        if(metrics == null){
+            return this;
+        }
+        OptimalCoverageGenerator run = new OptimalCoverageGenerator(this);
+        run.topology = topology.Counting();
+        return run;
+    }
+
+    /**
+     * Answers Solve from the cache when the same query was covered before with the same elements and
+     * settings, and adds new covers to it. Pass null to stop caching.
+     */
+    public void SetCache(CoverageCache cache){
+        this.cache = cache;
     }
 
     public Set<String> Generate(Geometry query) throws IOException, SchemaException{
-        FeatureType schema = featureSource.getSchema();
-        String geometryPropertyName = schema.getGeometryDescriptor().getLocalName();
-        Filter filter = filterFactory.intersects(
-                filterFactory.property(geometryPropertyName),
-                filterFactory.literal(query));
+        return Solve(query).Ids();
+    }
+
+    /**
+     * Same as Generate, but also reports the size of the cover and a lower bound on the optimal size.
+     */
+    public SetCoverSolution Solve(Geometry query) throws IOException, SchemaException{
+        return Solve(query, elements);
+    }
+
+    /**
+     * Same as Solve, with the elements in range read from the given source, which must hold the same
+     * elements as the generator's own, e.g. BatchedElements over them.
+     */
+    SetCoverSolution Solve(Geometry query, ElementSource elements) throws IOException, SchemaException{
+        String key = null;
+        if(cache != null){
+            key = CoverageCache.Key(query, elements.Fingerprint(), GetSettings(), topology);
+            SetCoverSolution solution = cache.Get(key);
+            if(solution != null){
+                return solution;
+            }
+        }
+        OptimalCoverageGenerator run = ForRun();
+        StageRecorder recorder = new StageRecorder(metrics, run.topology);
+        try{
+            SetCoverSolution solution = run.Solve(query, elements, recorder);
+            if(cache != null){
+                cache.Put(key, solution);
+            }
+            return solution;
+        } catch(IOException | SchemaException | RuntimeException e){
+            recorder.Fail(e);
+            throw e;
+        }
+    }
 
-        SimpleFeatureCollection inRangeFeatures = (SimpleFeatureCollection)featureSource.getFeatures(filter);
+    /**
+     * Settings a cached cover must have been computed with. Solver time budgets are not part of them.
+     */
+    private String GetSettings(){
+        return idAttribute + ";" + choppingEngine + ";" + solver.getClass().getName() + ";" + topology.Policy()
+                + ";" + costsDigest
+                + ";" + coverageTarget + ";" + sliverArea;
+    }
+
+    private SetCoverSolution Solve(Geometry query, ElementSource elements, StageRecorder recorder)
+            throws IOException, SchemaException{
+        recorder.Start("range_query");
+        List<SimpleFeature> inRangeFeatures = ReadFeatures(elements.GetFeatures(query));
+        recorder.End(1, inRangeFeatures.size());
+        recorder.Start("clip");
         List<SimpleFeature> clippedFeatures = Clip(inRangeFeatures, query);
-        List<SimpleFeature> choppedFeatures = Chop(clippedFeatures);
-        Set<String> notFullyCoveredIds = GetNotFullyCoveredIds(clippedFeatures);
-        IntersectionsMap intersectionMap = new IntersectionsMap(choppedFeatures, clippedFeatures);
+        recorder.End(inRangeFeatures.size(), clippedFeatures.size());
+        // a partial cover may leave out any element, so none is fixed
+        Set<String> notFullyCoveredIds = Collections.emptySet();
+        if(!IsPartial()){
+            recorder.Start("not_fully_covered");
+            notFullyCoveredIds = GetNotFullyCoveredIds(clippedFeatures);
+            recorder.End(clippedFeatures.size(), notFullyCoveredIds.size());
+        }
+        IntersectionsMap intersectionMap;
+        Map<String, Double> pieceAreas = IsPartial() ? new HashMap<String, Double>() : null;
+        if(choppingEngine == ChoppingEngine.Arrangement){
+            recorder.Start("arrangement");
+            intersectionMap = ChopArrangement(clippedFeatures, pieceAreas);
+            recorder.End(clippedFeatures.size(), intersectionMap.Map().size());
+        } else {
+            recorder.Start("chop");
+            List<List<SimpleFeature>> clusterPieces = ChopClusters(GetClusters(clippedFeatures));
+            int pieceCount = 0;
+            for(List<SimpleFeature> pieces : clusterPieces){
+                pieceCount += pieces.size();
+            }
+            recorder.End(clippedFeatures.size(), pieceCount);
+            recorder.Start("remove_duplicates");
+            List<SimpleFeature> choppedFeatures = RemoveClusterDuplicates(clusterPieces);
+            recorder.End(pieceCount, choppedFeatures.size());
+            recorder.Start("intersections");
+            intersectionMap = new IntersectionsMap(choppedFeatures, clippedFeatures, topology, pool);
+            recorder.End(choppedFeatures.size(), intersectionMap.HitCount());
+            if(pieceAreas != null){
+                for(SimpleFeature piece : choppedFeatures){
+                    pieceAreas.put(piece.getProperty("id").getValue().toString(), GetGeometry(piece).getArea());
+                }
+            }
+        }
+        recorder.Start("set_cover");
         IntersectionsMap invertedIntersections = intersectionMap.Invert();
-        return GetMinimumSetCover(
+        SetCoverSolution solution = GetMinimumSetCover(
                 intersectionMap.Map().keySet(),
                 invertedIntersections.Map(),
+                notFullyCoveredIds,
+                pieceAreas);
+        recorder.End(intersectionMap.Map().size(), solution.Size());
+        return solution;
+    }
+
+    /**
+     * Covers the query like Solve, and keeps the pieces and their incidence so that the cover can then be
+     * repaired locally as elements change, see IncrementalCoverage. Only the pairwise chopping engine
+     * keeps pieces, so the arrangement engine is not supported here, and the repair only counts
+     * elements, so neither are costs nor partial covers.
+     */
+    public IncrementalCoverage SolveIncremental(Geometry query) throws IOException, SchemaException{
+        if(choppingEngine != ChoppingEngine.Pairwise){
+            throw new IllegalStateException("Incremental covers need the pairwise chopping engine");
+        }
+        if(costs != null || IsPartial()){
+            throw new IllegalStateException("Incremental covers do not support costs or a coverage target");
+        }
+        List<SimpleFeature> inRangeFeatures = ReadFeatures(elements.GetFeatures(query));
+        List<SimpleFeature> clippedFeatures = Clip(inRangeFeatures, query);
+        Set<String> notFullyCoveredIds = GetNotFullyCoveredIds(clippedFeatures);
+        List<SimpleFeature> choppedFeatures = Chop(clippedFeatures);
+        IntersectionsMap intersectionMap = new IntersectionsMap(choppedFeatures, clippedFeatures, topology, pool);
+        SetCoverSolution solution = GetMinimumSetCover(
+                intersectionMap.Map().keySet(),
+                intersectionMap.Invert().Map(),
                 notFullyCoveredIds);
+        return new IncrementalCoverage(this, query, inRangeFeatures, clippedFeatures, choppedFeatures,
+                intersectionMap, solution.Ids());
     }
 
-    private List<SimpleFeature> Clip(SimpleFeatureCollection features, Geometry range) throws SchemaException{
-        List<SimpleFeature> clippedFeatures = new ArrayList<>();
+    /**
+     * Covers the query tile by tile, so that memory is bounded by what a single tile touches rather than
+     * by the whole range. The query is cut by a square grid with the given cell size, the tiles are covered
+     * one after the other (each with its stages on the pool, if set), and the union of the tile covers is
+     * then thinned by
+     * dropping elements whose part of the query is covered by the remaining ones. Tiles only share the
+     * elements straddling their borders, so the largest tile lower bound is a lower bound for the query.
+     * With a coverage target each tile reaches it on its own; the tile bounds then do not carry over, so
+     * the lower bound is 0.
+     */
+    public SetCoverSolution SolveTiled(Geometry query, double tileSize) throws IOException, SchemaException{
+        if(!(tileSize > 0) || Double.isInfinite(tileSize)){
+            throw new IllegalArgumentException("Tile size must be finite and positive: " + tileSize);
+        }
+        List<Geometry> tiles = GetTiles(query, tileSize);
+        List<SetCoverSolution> tileSolutions = new ArrayList<>();
+        for(Geometry tile : tiles){
+            tileSolutions.add(Solve(tile));
+        }
+        Set<String> ids = new HashSet<>();
+        int lowerBound = 0;
+        double coveredWeight = 0;
+        double totalWeight = 0;
+        for(SetCoverSolution tileSolution : tileSolutions){
+            ids.addAll(tileSolution.Ids());
+            lowerBound = Math.max(lowerBound, tileSolution.LowerBound());
+            coveredWeight += tileSolution.CoveredWeight();
+            totalWeight += tileSolution.TotalWeight();
+        }
+        OptimalCoverageGenerator run = ForRun();
+        StageRecorder recorder = new StageRecorder(metrics, run.topology);
+        recorder.Start("remove_redundant");
+        Set<String> remainingIds = run.RemoveRedundant(ids, query);
+        recorder.End(ids.size(), remainingIds.size());
+        if(costs == null && !IsPartial()){
+            return new SetCoverSolution(remainingIds, lowerBound);
+        }
+        return new SetCoverSolution(remainingIds, IsPartial() ? 0 : lowerBound, GetCost(remainingIds),
+                coveredWeight, totalWeight, costs != null);
+    }
+
+    private double GetCost(Set<String> ids){
+        double cost = 0;
+        for(String id : ids){
+            Double elementCost = costs == null ? null : costs.get(id);
+            cost += elementCost == null ? 1 : elementCost;
+        }
+        return cost;
+    }
+
+    private boolean IsPartial(){
+        return coverageTarget < 1;
+    }
+
+    private boolean IsSliver(Geometry reducedGeometry){
+        return sliverArea > 0 && reducedGeometry.getArea() < sliverArea;
+    }
+
+    /**
+     * Whether every polygon of the geometry is a sliver, i.e. chopping would drop all of it.
+     */
+    private boolean IsSlivers(Geometry reducedGeometry){
+        for(int i=0; i<reducedGeometry.getNumGeometries(); i++){
+            if(!IsSliver(reducedGeometry.getGeometryN(i))){
+                return false;
+            }
+        }
+        return sliverArea > 0;
+    }
+
+    private List<Geometry> GetTiles(Geometry query, double tileSize){
+        Envelope envelope = query.getEnvelopeInternal();
+        GeometryFactory geometryFactory = query.getFactory();
+        PreparedTopology preparedQuery = new PreparedTopology(topology, query);
+        List<Geometry> tiles = new ArrayList<>();
+        for(double y = envelope.getMinY(); y < envelope.getMaxY(); y += tileSize){
+            for(double x = envelope.getMinX(); x < envelope.getMaxX(); x += tileSize){
+                Geometry cell = geometryFactory.toGeometry(new Envelope(x, x + tileSize, y, y + tileSize));
+                if(!preparedQuery.Intersects(cell)){
+                    continue;
+                }
+                Geometry tile = preparedQuery.Intersection(topology.Reduce(cell));
+                for(int i=0; i<tile.getNumGeometries(); i++){
+                    if(TopologyHelper.Validate(tile.getGeometryN(i))){
+                        tiles.add(tile.getGeometryN(i));
+                    }
+                }
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Drops selected elements whose part of the query is covered by the other remaining ones,
+     * smallest parts first.
+     */
+    private Set<String> RemoveRedundant(Set<String> ids, Geometry query) throws IOException, SchemaException{
+        final List<SimpleFeature> clippedFeatures = Clip(elements.GetFeatures(ids), query);
+        Collections.sort(clippedFeatures, new Comparator<SimpleFeature>() {
+            @Override
+            public int compare(SimpleFeature feature, SimpleFeature otherFeature) {
+                int byArea = Double.compare(GetGeometry(feature).getArea(), GetGeometry(otherFeature).getArea());
+                return byArea != 0 ? byArea : feature.getID().compareTo(otherFeature.getID());
+            }
+        });
+        STRtree index = new STRtree();
+        for(int i=0; i<clippedFeatures.size(); i++){
+            index.insert(GetGeometry(clippedFeatures.get(i)).getEnvelopeInternal(), i);
+        }
+        boolean[] removed = new boolean[clippedFeatures.size()];
+        Set<String> result = new HashSet<>(ids);
+        for(int i=0; i<clippedFeatures.size(); i++){
+            Geometry geometry = GetGeometry(clippedFeatures.get(i));
+            List<Geometry> neighbours = new ArrayList<>();
+            for(Object item : index.query(geometry.getEnvelopeInternal())){
+                int j = (Integer)item;
+                if(j != i && !removed[j]){
+                    neighbours.add(GetGeometry(clippedFeatures.get(j)));
+                }
+            }
+            if(neighbours.isEmpty()){
+                continue;
+            }
+            Geometry union = topology.Reduce(topology.Union(neighbours));
+            if(TopologyHelper.Validate(union) && topology.IsCovered(geometry, union)){
+                removed[i] = true;
+                result.remove(clippedFeatures.get(i).getProperty("id").getValue().toString());
+            }
+        }
+        return result;
+    }
+
+    private List<SimpleFeature> ReadFeatures(SimpleFeatureCollection features){
+        List<SimpleFeature> result = new ArrayList<>();
         SimpleFeatureIterator iterator = features.features();
         try{
             while(iterator.hasNext()){
-                SimpleFeature feature = iterator.next();
-                Geometry geometry = GetGeometry(feature);
-                if(geometry.intersects(range)){
-                    Geometry clippedGeometry = TopologyHelper.Intersection(geometry, range);
-                    if(TopologyHelper.Validate(clippedGeometry)){
-                        SimpleFeature clippedFeature = MakeFeature(clippedGeometry, feature.getIdentifier().getID());
-                        clippedFeatures.add(clippedFeature);
-                    }
-                }
+                result.add(iterator.next());
             }
-            return clippedFeatures;
         } finally {
             iterator.close();
         }
+        return result;
     }
 
-    private List<SimpleFeature> Chop(List<SimpleFeature> features) throws SchemaException{
-        List<SimpleFeature> result = new ArrayList<>(features);
+    List<SimpleFeature> Clip(SimpleFeatureCollection features, Geometry range) throws SchemaException{
+        return Clip(ReadFeatures(features), range);
+    }
+
+    List<SimpleFeature> Clip(List<SimpleFeature> inRangeFeatures, final Geometry range) throws SchemaException{
+        List<SimpleFeature> clippedFeatures = Parallel.Map(pool, inRangeFeatures,
+                new Parallel.ChunkTask<SimpleFeature, SimpleFeature>() {
+            @Override
+            public List<SimpleFeature> Run(List<SimpleFeature> chunk) throws SchemaException {
+                PreparedTopology preparedRange = new PreparedTopology(topology, range);
+                List<SimpleFeature> clippedChunk = new ArrayList<>();
+                for(SimpleFeature feature : chunk){
+                    clippedChunk.add(Clip(feature, preparedRange));
+                }
+                return clippedChunk;
+            }
+        });
+        clippedFeatures.removeAll(Collections.singleton(null));
+        return clippedFeatures;
+    }
+
+    private SimpleFeature Clip(SimpleFeature feature, PreparedTopology preparedRange) throws SchemaException{
+        // source features may be shared by concurrent queries, so their user data is only read
+        Geometry geometry = topology.GetReduced(feature);
+        if(geometry == null){
+            geometry = topology.Reduce((Geometry)feature.getDefaultGeometry());
+        }
+        if(preparedRange.Intersects(geometry)){
+            Geometry clippedGeometry = preparedRange.Intersection(geometry);
+            if(TopologyHelper.Validate(clippedGeometry)){
+                SimpleFeature clippedFeature = MakeFeature(clippedGeometry, feature.getIdentifier().getID());
+                topology.SetReduced(clippedFeature);
+                return clippedFeature;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Splits the features into groups that do not intersect each other. Chopping never crosses group
+     * borders, so the groups are chopped independently and the pieces simply concatenated.
+     */
+    private List<List<SimpleFeature>> GetClusters(List<SimpleFeature> features){
+        STRtree index = new STRtree();
+        for(int i=0; i<features.size(); i++){
+            index.insert(GetGeometry(features.get(i)).getEnvelopeInternal(), i);
+        }
+        int[] parents = new int[features.size()];
+        for(int i=0; i<parents.length; i++){
+            parents[i] = i;
+        }
+        for(int i=0; i<features.size(); i++){
+            Geometry geometry = GetGeometry(features.get(i));
+            PreparedTopology preparedGeometry = new PreparedTopology(topology, geometry, geometry);
+            for(Object item : index.query(geometry.getEnvelopeInternal())){
+                int j = (Integer)item;
+                int root = FindRoot(parents, i);
+                int otherRoot = FindRoot(parents, j);
+                if(j > i && root != otherRoot && preparedGeometry.Intersects(GetGeometry(features.get(j)))){
+                    parents[Math.max(root, otherRoot)] = Math.min(root, otherRoot);
+                }
+            }
+        }
+        Map<Integer, List<SimpleFeature>> clusters = new LinkedHashMap<>();
+        for(int i=0; i<features.size(); i++){
+            int root = FindRoot(parents, i);
+            if(!clusters.containsKey(root)){
+                clusters.put(root, new ArrayList<SimpleFeature>());
+            }
+            clusters.get(root).add(features.get(i));
+        }
+        return new ArrayList<>(clusters.values());
+    }
+
+    private int FindRoot(int[] parents, int i){
+        while(parents[i] != i){
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * Faces of the arrangements of the clusters mapped to the ids of the elements covering them. Slivers
+     * are left out, and the areas of the other faces are put into faceAreas unless it is null.
+     */
+    private IntersectionsMap ChopArrangement(List<SimpleFeature> features, Map<String, Double> faceAreas)
+            throws SchemaException{
+        List<PolygonArrangement> arrangements = Parallel.Map(pool, GetClusters(features),
+                new Parallel.ChunkTask<List<SimpleFeature>, PolygonArrangement>() {
+            @Override
+            public List<PolygonArrangement> Run(List<List<SimpleFeature>> chunk) {
+                List<PolygonArrangement> chunkArrangements = new ArrayList<>();
+                for(List<SimpleFeature> cluster : chunk){
+                    chunkArrangements.add(MakeArrangement(cluster));
+                }
+                return chunkArrangements;
+            }
+        });
+        IntersectionsMap intersectionMap = new IntersectionsMap();
+        for(PolygonArrangement arrangement : arrangements){
+            for(int i=0; i<arrangement.Faces().size(); i++){
+                Geometry face = arrangement.Faces().get(i);
+                if(IsSliver(face)){
+                    continue;
+                }
+                String faceId = UUID.randomUUID().toString();
+                if(faceAreas != null){
+                    faceAreas.put(faceId, face.getArea());
+                }
+                for(String id : arrangement.CoveringIds().get(i)){
+                    intersectionMap.Add(faceId, id);
+                }
+            }
+        }
+        return intersectionMap;
+    }
+
+    private PolygonArrangement MakeArrangement(List<SimpleFeature> features){
+        List<String> ids = new ArrayList<>();
+        List<Geometry> geometries = new ArrayList<>();
         for(SimpleFeature feature : features){
-            result = Chop(result, feature);
+            ids.add(feature.getProperty("id").getValue().toString());
+            geometries.add(GetGeometry(feature));
         }
-        return RemoveDuplicates(result);
+        return new PolygonArrangement(ids, geometries, topology);
+    }
+
+    List<SimpleFeature> Chop(List<SimpleFeature> features) throws SchemaException{
+        return RemoveClusterDuplicates(ChopClusters(GetClusters(features)));
+    }
+
+    private List<List<SimpleFeature>> ChopClusters(List<List<SimpleFeature>> clusters) throws SchemaException{
+        return Parallel.Map(pool, clusters, new Parallel.ChunkTask<List<SimpleFeature>, List<SimpleFeature>>() {
+            @Override
+            public List<List<SimpleFeature>> Run(List<List<SimpleFeature>> chunk) throws SchemaException {
+                List<List<SimpleFeature>> chunkPieces = new ArrayList<>();
+                for(List<SimpleFeature> cluster : chunk){
+                    chunkPieces.add(ChopCluster(cluster));
+                }
+                return chunkPieces;
+            }
+        });
+    }
+
+    /**
+     * Chops the pieces of the cluster by one element after the other. The pieces are split by each
+     * element independently of each other, so that step runs on the pool, which keeps a cluster that
+     * spans the whole layer from being chopped on a single thread.
+     */
+    private List<SimpleFeature> ChopCluster(List<SimpleFeature> features) throws SchemaException{
+        // elements are kept as pieces and may end up in several chunks, so their validity is cached up
+        // front and their user data only read while chopping
+        for(SimpleFeature feature : features){
+            TopologyHelper.Validate(feature);
+        }
+        List<SimpleFeature> result = new ArrayList<>(features);
+        for(final SimpleFeature feature : features){
+            result = Parallel.Map(pool, result, new Parallel.ChunkTask<SimpleFeature, SimpleFeature>() {
+                @Override
+                public List<SimpleFeature> Run(List<SimpleFeature> chunk) throws SchemaException {
+                    return Chop(chunk, feature);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Removes duplicate pieces within each cluster. Pieces of different clusters never overlap, so
+     * there is no need to compare them.
+     */
+    private List<SimpleFeature> RemoveClusterDuplicates(List<List<SimpleFeature>> clusterPieces) throws SchemaException{
+        List<List<SimpleFeature>> uniquePieces = Parallel.Map(pool, clusterPieces,
+                new Parallel.ChunkTask<List<SimpleFeature>, List<SimpleFeature>>() {
+            @Override
+            public List<List<SimpleFeature>> Run(List<List<SimpleFeature>> chunk) {
+                List<List<SimpleFeature>> chunkPieces = new ArrayList<>();
+                for(List<SimpleFeature> pieces : chunk){
+                    chunkPieces.add(RemoveDuplicates(pieces));
+                }
+                return chunkPieces;
+            }
+        });
+        List<SimpleFeature> result = new ArrayList<>();
+        for(List<SimpleFeature> pieces : uniquePieces){
+            result.addAll(pieces);
+        }
+        return result;
     }
 
     private List<SimpleFeature> Chop(List<SimpleFeature> features, SimpleFeature mask) throws SchemaException {
         List<SimpleFeature> result = new ArrayList<>();
+        PreparedTopology preparedMask = new PreparedTopology(topology,
+                (Geometry)mask.getDefaultGeometry(), topology.Reduce(mask));
         for(SimpleFeature feature : features){
-            result.addAll(Chop(feature, mask));
+            result.addAll(Chop(feature, mask, preparedMask));
         }
         return result;
     }
 
-    private List<SimpleFeature> Chop(SimpleFeature object, SimpleFeature mask) throws SchemaException{
+    private List<SimpleFeature> Chop(SimpleFeature object, SimpleFeature mask, PreparedTopology preparedMask)
+            throws SchemaException{
         List<SimpleFeature> choppedFeatures = new ArrayList<>();
         Geometry objectGeometry = (Geometry) object.getDefaultGeometry();
-        Geometry maskGeometry = (Geometry) mask.getDefaultGeometry();
-        if(!TopologyHelper.Validate(objectGeometry)) {
+        Geometry maskGeometry = preparedMask.ReducedGeometry();
+        if(!TopologyHelper.Validate(object)) {
             return choppedFeatures;
-        } else if(!TopologyHelper.Validate(maskGeometry)){
+        } else if(!preparedMask.IsValid()){
             choppedFeatures.add(object);
-        } else if(objectGeometry.disjoint(maskGeometry) || objectGeometry.touches(maskGeometry)){
+        } else if(preparedMask.IsDisjointOrTouching(objectGeometry)){
             choppedFeatures.add(object);
-        } else if(TopologyHelper.Equal(objectGeometry, maskGeometry)){
+        } else if(preparedMask.IsEqual(objectGeometry)){
             choppedFeatures.add(object);
-        } else if(objectGeometry.contains(maskGeometry)){
-            Geometry difference = (Geometry)objectGeometry.clone();
+        } else if(preparedMask.IsWithin(objectGeometry)){
+            Geometry difference = topology.Reduce(object);
             for(int i=0;i<maskGeometry.getNumGeometries(); i++){
-                Geometry geometry = TopologyHelper.Reduce(maskGeometry.getGeometryN(i));
+                Geometry geometry = maskGeometry.getGeometryN(i);
                 if(geometry.getGeometryType() == "Polygon"){
-                    difference = TopologyHelper.Difference(difference, geometry);
+                    difference = topology.Reduce(
+                            topology.Overlay(difference, geometry, OverlayOp.DIFFERENCE));
                 }
             }
             for(int i=0;i<difference.getNumGeometries(); i++){
                 Geometry geometry = difference.getGeometryN(i);
-                if(TopologyHelper.Validate(geometry)){
-                    choppedFeatures.add(MakeFeature(geometry));
+                if(TopologyHelper.Validate(geometry) && !IsSliver(geometry)){
+                    choppedFeatures.add(MakeReducedFeature(geometry));
                 }
             }
             choppedFeatures.add(mask);
-        } else if(maskGeometry.contains(objectGeometry)){
+        } else if(preparedMask.Contains(objectGeometry)){
             choppedFeatures.add(object);
-        } else if (objectGeometry.intersects(maskGeometry)){
-            Geometry intersection = TopologyHelper.Intersection(objectGeometry, maskGeometry);
-            Geometry left = TopologyHelper.Difference(objectGeometry, maskGeometry);
+        } else if (preparedMask.Intersects(objectGeometry)){
+            Geometry reducedObjectGeometry = topology.Reduce(object);
+            Geometry intersection = preparedMask.Intersection(reducedObjectGeometry);
+            Geometry left = preparedMask.Difference(reducedObjectGeometry);
             for(int i=0;i<left.getNumGeometries(); i++){
                 Geometry geometry = left.getGeometryN(i);
-                if(geometry.getGeometryType() == "Polygon"){
-                    choppedFeatures.add(MakeFeature(geometry));
+                if(geometry.getGeometryType() == "Polygon" && !IsSliver(geometry)){
+                    choppedFeatures.add(MakeReducedFeature(geometry));
                 }
             }
             for(int i=0;i<intersection.getNumGeometries(); i++){
                 Geometry geometry = intersection.getGeometryN(i);
-                if(geometry.getGeometryType() == "Polygon"){
-                    choppedFeatures.add(MakeFeature(geometry));
+                if(geometry.getGeometryType() == "Polygon" && !IsSliver(geometry)){
+                    choppedFeatures.add(MakeReducedFeature(geometry));
                 }
             }
         }
         return choppedFeatures;
     }
 
-    private List<SimpleFeature> RemoveDuplicates(List<SimpleFeature> features){
+    List<SimpleFeature> RemoveDuplicates(List<SimpleFeature> features){
         List<SimpleFeature> uniqueFeatures = new ArrayList<>();
         for(int i=0; i<features.size(); i++){
             Geometry firstGeometry = GetGeometry(features.get(i));
             boolean isUnique = true;
             for(SimpleFeature feature : uniqueFeatures){
-                Geometry g = GetGeometry(feature);
-                if(TopologyHelper.Equal(GetGeometry(feature), firstGeometry)){
+                if(topology.Equal(GetGeometry(feature), firstGeometry)){
                     isUnique = false;
                     break;
                 }
@@ -164,8 +749,7 @@ public class OptimalCoverageGenerator {
     }
 
     private Geometry GetGeometry(SimpleFeature feature){
-        Geometry geometry = (Geometry)feature.getDefaultGeometry();
-        return TopologyHelper.Reduce(geometry);
+        return topology.Reduce(feature);
     }
 
 
@@ -176,6 +760,12 @@ public class OptimalCoverageGenerator {
                 null);
     }
 
+    private SimpleFeature MakeReducedFeature (Geometry reducedGeometry) throws SchemaException {
+        SimpleFeature feature = MakeFeature(reducedGeometry);
+        topology.SetReduced(feature);
+        return feature;
+    }
+
     private SimpleFeature MakeFeature (Geometry geometry, String id) throws SchemaException {
         return SimpleFeatureBuilder.build(
                 TYPE,
@@ -187,110 +777,79 @@ public class OptimalCoverageGenerator {
         return feature.getProperty(idAttribute).getValue().toString();
     }
 
-    private Set<String> GetNotFullyCoveredIds(List<SimpleFeature> clippedFeatures){
-        Set<String> result = new HashSet<>();
+    /**
+     * Ids of the elements that are not covered by the other elements, i.e. that are in every cover.
+     * Only the elements whose envelopes meet the element's envelope can cover any of it, so each
+     * element is tested against the cascaded union of its indexed neighbours alone. An element without
+     * neighbours is in every cover unless its area is negligible, as when tested against all the others.
+     * Parts left uncovered that chopping drops as slivers do not make an element mandatory either.
+     */
+    Set<String> GetNotFullyCoveredIds(final List<SimpleFeature> clippedFeatures) throws SchemaException{
+        final STRtree index = new STRtree();
         for(SimpleFeature feature : clippedFeatures){
-            Geometry thisGeometry = (Geometry)feature.getDefaultGeometry();
-            String id = feature.getProperty(idAttribute).getValue().toString();
-            FeatureCollection otherFeatureCollection = FilterById(id, clippedFeatures, true);
-            Geometry otherGeometry = GetUnionGeometry(otherFeatureCollection);
-            thisGeometry = TopologyHelper.Reduce(thisGeometry.union());
-            if(!TopologyHelper.Validate(thisGeometry) || !TopologyHelper.Validate(otherGeometry)){
-                continue;
-            }
-            if(!TopologyHelper.IsCovered(thisGeometry, otherGeometry)){
-                result.add(id);
-            }
+            index.insert(GetGeometry(feature).getEnvelopeInternal(), feature);
         }
+        // STRtree builds itself on the first query, which must not race between threads
+        index.build();
+        List<String> ids = Parallel.Map(pool, clippedFeatures, new Parallel.ChunkTask<SimpleFeature, String>() {
+            @Override
+            public List<String> Run(List<SimpleFeature> chunk) {
+                List<String> chunkIds = new ArrayList<>();
+                for(SimpleFeature feature : chunk){
+                    chunkIds.add(IsFullyCovered(feature, index) ? null : GetId(feature));
+                }
+                return chunkIds;
+            }
+        });
+        Set<String> result = new HashSet<>(ids);
+        result.remove(null);
         return result;
     }
 
-    private FeatureCollection FilterById(String id, List<SimpleFeature> featureCollection, Boolean except){
-        List<String> ids = new ArrayList<>();
-        ids.add(id);
-        return FilterByIds(ids, featureCollection, except);
-    }
-
-    private FeatureCollection FilterByIds(List<String> ids, List<SimpleFeature> featureCollection, Boolean except){
-        DefaultFeatureCollection outputFeatures = new DefaultFeatureCollection();
-        SimpleFeatureType type = SimpleFeatureTypeBuilder.copy(((SimpleFeature)featureCollection.get(0)).getType());
-        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
-        for(Feature f : featureCollection){
-            SimpleFeature feature = (SimpleFeature)f;
-            boolean contained = ids.contains(GetId(feature));
-            boolean use = except ? !contained : contained;
-            if(use){
-                builder.add(feature.getDefaultGeometry());
-                outputFeatures.add(builder.buildFeature(GetId(feature)));
+    private boolean IsFullyCovered(SimpleFeature feature, STRtree index){
+        Geometry thisGeometry = GetGeometry(feature);
+        List<Geometry> neighbours = new ArrayList<>();
+        for(Object item : index.query(thisGeometry.getEnvelopeInternal())){
+            if(item != feature){
+                neighbours.add(GetGeometry((SimpleFeature)item));
             }
         }
-        return outputFeatures;
-    }
-
-    private Geometry GetUnionGeometry(FeatureCollection featureCollection){
-        FeatureIterator iterator = featureCollection.features();
-        try{
-            Geometry unionGeometry = null;
-            while(iterator.hasNext()){
-                SimpleFeature feature = (SimpleFeature)iterator.next();
-                Geometry geometry = (Geometry)feature.getDefaultGeometry();
-                if(unionGeometry == null){
-                    unionGeometry = TopologyHelper.Reduce(geometry);
-                } else {
-                    unionGeometry = TopologyHelper.Union(unionGeometry, geometry);
-                }
-            }
-            return unionGeometry;
-        } finally {
-            iterator.close();
+        thisGeometry = topology.Reduce(thisGeometry.union());
+        if(!TopologyHelper.Validate(thisGeometry)){
+            return true;
         }
-    }
-
-
-    private Set<String> GetMinimumSetCover(Set<String> universe, Map<String, Set<String>> subsets,
-                                                 Set<String> selectedSubsetKeys){
-        Set<String> selectedSubsetsUnion = new HashSet<>();
-        for(String key : selectedSubsetKeys){
-            if(subsets.containsKey(key)){
-                selectedSubsetsUnion.addAll(subsets.get(key));
-            }
+        if(neighbours.isEmpty()){
+            // what IsCovered gives against the other elements, which are all disjoint from this one
+            return topology.IsNegligible(thisGeometry, thisGeometry) || IsSlivers(thisGeometry);
         }
-        while(!selectedSubsetsUnion.equals(universe)){
-            String largestSet = PopLargestSet(subsets, selectedSubsetsUnion);
-            if(largestSet == null){
-                break;
-            }
-            selectedSubsetKeys.add(largestSet);
+        Geometry otherGeometry = topology.Reduce(topology.Union(neighbours));
+        if(!TopologyHelper.Validate(otherGeometry)){
+            return true;
         }
-        return selectedSubsetKeys;
+        if(topology.IsCovered(thisGeometry, otherGeometry)){
+            return true;
+        }
+        return sliverArea > 0 && IsSlivers(topology.Difference(thisGeometry, otherGeometry));
     }
 
-    private String PopLargestSet(Map<String, Set<String>> sets, Set<String> excluded){
-        int largestCount = Integer.MIN_VALUE;
-        String largestKey = null;
-        for(String key : sets.keySet()){
-            Set<String> value = sets.get(key);
-            int count = GetCountExcluding(value, excluded);
-            if(count > largestCount && count > 0){
-                largestCount = count;
-                largestKey = key;
-            }
-        }
-        if(largestKey == null){
-            return null;
-        } else{
-            excluded.addAll(sets.remove(largestKey));
-            return largestKey;
-        }
+
+    SetCoverSolution GetMinimumSetCover(Set<String> universe, Map<String, Set<String>> subsets,
+                                         Set<String> selectedSubsetKeys){
+        return GetMinimumSetCover(universe, subsets, selectedSubsetKeys, null);
     }
 
-    private int GetCountExcluding(Set<String> counted, Set<String> excluded){
-        int counter = 0;
-        for(String value : counted){
-            if(!excluded.contains(value)){
-                counter++;
-            }
+    /**
+     * Cover under the costs and coverage target of the generator. Piece areas weigh the pieces for the
+     * target and are only needed when it is below 1.
+     */
+    SetCoverSolution GetMinimumSetCover(Set<String> universe, Map<String, Set<String>> subsets,
+                                         Set<String> selectedSubsetKeys, Map<String, Double> pieceAreas){
+        SetCoverProblem problem = new SetCoverProblem(universe, subsets, selectedSubsetKeys);
+        problem.SetCosts(costs);
+        if(pieceAreas != null){
+            problem.SetPieceWeights(pieceAreas);
         }
-        return counter;
+        problem.SetCoverageTarget(coverageTarget);
+        return solver.Solve(problem);
     }
 }
@@ -0,0 +1,77 @@
+package eu.wawr.minimalCoverage;
+
+
+import org.geotools.feature.SchemaException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a task over consecutive chunks of a list, either inline or on a fork-join pool.
+ * Results are concatenated in input order, so the output does not depend on scheduling.
+ * JTS prepared geometries are not safe to share between threads, so tasks should prepare
+ * whatever they need per chunk. Maps started from a task already running on the pool run inline,
+ * so nested stages never block a worker waiting for other workers of the same pool.
+ */
+class Parallel {
+
+    private static final int chunksPerThread = 4;
+
+    interface ChunkTask<T, R> {
+        List<R> Run(List<T> chunk) throws SchemaException;
+    }
+
+    static <T, R> List<R> Map(ForkJoinPool pool, List<T> items, final ChunkTask<T, R> task)
+            throws SchemaException{
+        if(pool == null || items.size() < 2 || IsWorkerOf(pool)){
+            return task.Run(items);
+        }
+        int chunkCount = Math.min(items.size(), pool.getParallelism() * chunksPerThread);
+        List<Callable<List<R>>> callables = new ArrayList<>();
+        for(int i=0; i<chunkCount; i++){
+            final List<T> chunk = items.subList(
+                    (int)((long)items.size() * i / chunkCount),
+                    (int)((long)items.size() * (i+1) / chunkCount));
+            callables.add(new Callable<List<R>>() {
+                @Override
+                public List<R> call() throws Exception {
+                    return task.Run(chunk);
+                }
+            });
+        }
+        List<R> result = new ArrayList<>(items.size());
+        for(Future<List<R>> future : pool.invokeAll(callables)){
+            result.addAll(Get(future));
+        }
+        return result;
+    }
+
+    private static boolean IsWorkerOf(ForkJoinPool pool){
+        Thread thread = Thread.currentThread();
+        return thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread)thread).getPool() == pool;
+    }
+
+    private static <R> R Get(Future<R> future) throws SchemaException{
+        try{
+            return future.get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch(ExecutionException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof SchemaException){
+                throw (SchemaException)cause;
+            } else if(cause instanceof RuntimeException){
+                throw (RuntimeException)cause;
+            } else if(cause instanceof Error){
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.operation.polygonize.Polygonizer;
+
+import java.util.*;
+
+/**
+ * Planar arrangement of a set of polygons. All boundaries are noded together in a single pass and
+ * polygonized into atomic faces; each face is tagged with the ids of the polygons covering it.
+ * Faces lying in holes of the union are not part of the arrangement.
+ */
+public class PolygonArrangement {
+
+    private final List<Geometry> faces = new ArrayList<>();
+    private final List<Set<String>> coveringIds = new ArrayList<>();
+
+    public PolygonArrangement(List<String> ids, List<Geometry> reducedGeometries, TopologyHelper topology){
+        List<PreparedTopology> topologies = new ArrayList<>();
+        List<Geometry> boundaries = new ArrayList<>();
+        STRtree index = new STRtree();
+        for(int i=0; i<reducedGeometries.size(); i++){
+            Geometry geometry = reducedGeometries.get(i);
+            index.insert(geometry.getEnvelopeInternal(), i);
+            topologies.add(new PreparedTopology(topology, geometry, geometry));
+            if(topologies.get(i).IsValid()){
+                boundaries.add(geometry.getBoundary());
+            }
+        }
+        if(boundaries.isEmpty()){
+            return;
+        }
+        GeometryFactory geometryFactory = boundaries.get(0).getFactory();
+        Geometry nodedLines = geometryFactory.buildGeometry(boundaries).union();
+        Polygonizer polygonizer = new Polygonizer();
+        polygonizer.add(nodedLines);
+        for(Object polygon : polygonizer.getPolygons()){
+            Geometry face = topology.Reduce((Geometry)polygon);
+            if(!TopologyHelper.Validate(face) || topology.IsNegligible(face)){
+                continue;
+            }
+            Point interiorPoint = face.getInteriorPoint();
+            Set<String> covering = new HashSet<>();
+            for(Object item : index.query(new Envelope(interiorPoint.getCoordinate()))){
+                int i = (Integer)item;
+                if(topologies.get(i).IsValid() && topologies.get(i).Intersects(interiorPoint)){
+                    covering.add(ids.get(i));
+                }
+            }
+            if(!covering.isEmpty()){
+                for(int i=0; i<face.getNumGeometries(); i++){
+                    faces.add(face.getGeometryN(i));
+                    coveringIds.add(covering);
+                }
+            }
+        }
+    }
+
+    /** Reduced geometries of the arrangement faces. */
+    public List<Geometry> Faces(){
+        return faces;
+    }
+
+    /** Ids of the polygons covering the face with the same index in Faces(). */
+    public List<Set<String>> CoveringIds(){
+        return coveringIds;
+    }
+}
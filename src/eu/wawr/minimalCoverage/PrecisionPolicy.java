@@ -0,0 +1,118 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+
+import javax.measure.quantity.Angle;
+import javax.measure.quantity.Length;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+import javax.measure.unit.Unit;
+import java.util.Locale;
+
+/**
+ * How finely a TopologyHelper snaps geometries and how small a difference it ignores. Coordinates are
+ * reduced to a grid of 1/scale, and two geometries count as equal, or one as covered by the other,
+ * when the area they differ by is below the larger of the absolute area tolerance and the relative
+ * tolerance times the area of the compared piece. With snapping on, an overlay that fails with a
+ * TopologyException is retried on snapped and then on coarser-rounded inputs before giving up.
+ */
+public class PrecisionPolicy {
+
+    private static final double fixedScale = 100000000000.0;
+    private static final double fixedAreaTolerance = 1/10000000000.0;
+    private static final double metreResolution = 1/10000.0;
+    private static final double degreeResolution = 1/1000000000.0;
+    private static final double extentResolution = 1/1000000000.0;
+    private static final double coordinateResolution = 1/10000000000000.0;
+    private static final double toleranceCells = 100;
+    private static final double relativeAreaTolerance = 1/1000000000.0;
+
+    private final double scale;
+    private final double areaTolerance;
+    private final double relativeTolerance;
+    private final boolean snapping;
+
+    public PrecisionPolicy(double scale, double areaTolerance, double relativeTolerance, boolean snapping){
+        this.scale = scale;
+        this.areaTolerance = areaTolerance;
+        this.relativeTolerance = relativeTolerance;
+        this.snapping = snapping;
+    }
+
+    /**
+     * The fixed 1e11 grid and 1e-10 area tolerance used regardless of the layer, with snapping retries.
+     */
+    public static PrecisionPolicy Fixed(){
+        return new PrecisionPolicy(fixedScale, fixedAreaTolerance, 0, true);
+    }
+
+    /**
+     * Policy for a layer in the given reference system and extent, either of which may be null. The grid
+     * is a tenth of a millimetre for linear units and about as fine in degrees for geographic ones, or a
+     * billionth of the extent when the units are unknown, never finer than the coordinate magnitudes
+     * leave room for in a double. Differences below a hundred grid cells squared, or a billionth of the
+     * compared piece, are ignored.
+     */
+    public static PrecisionPolicy ForLayer(CoordinateReferenceSystem crs, Envelope extent){
+        boolean hasExtent = extent != null && !extent.isNull();
+        double resolution = GetUnitResolution(crs);
+        if(Double.isNaN(resolution)){
+            resolution = hasExtent && Math.max(extent.getWidth(), extent.getHeight()) > 0
+                    ? Math.max(extent.getWidth(), extent.getHeight()) * extentResolution
+                    : 1 / fixedScale;
+        }
+        if(hasExtent){
+            double magnitude = Math.max(Math.max(Math.abs(extent.getMinX()), Math.abs(extent.getMaxX())),
+                    Math.max(Math.abs(extent.getMinY()), Math.abs(extent.getMaxY())));
+            resolution = Math.max(resolution, magnitude * coordinateResolution);
+        }
+        // a power of ten, so that reduced coordinates stay short in decimal
+        double scale = Math.pow(10, Math.floor(-Math.log10(resolution)));
+        double cell = toleranceCells / scale;
+        return new PrecisionPolicy(scale, cell * cell, relativeAreaTolerance, true);
+    }
+
+    /** Grid size in the units of the reference system, or NaN if they are unknown. */
+    @SuppressWarnings("unchecked")
+    private static double GetUnitResolution(CoordinateReferenceSystem crs){
+        if(crs == null || crs.getCoordinateSystem().getDimension() == 0){
+            return Double.NaN;
+        }
+        Unit<?> unit = crs.getCoordinateSystem().getAxis(0).getUnit();
+        if(unit == null){
+            return Double.NaN;
+        }
+        if(crs instanceof GeographicCRS && unit.isCompatible(NonSI.DEGREE_ANGLE)){
+            return degreeResolution / ((Unit<Angle>)unit).getConverterTo(NonSI.DEGREE_ANGLE).convert(1);
+        }
+        if(unit.isCompatible(SI.METER)){
+            return metreResolution / ((Unit<Length>)unit).getConverterTo(SI.METER).convert(1);
+        }
+        return Double.NaN;
+    }
+
+    public double Scale(){
+        return scale;
+    }
+
+    public double AreaTolerance(){
+        return areaTolerance;
+    }
+
+    public double RelativeTolerance(){
+        return relativeTolerance;
+    }
+
+    public boolean IsSnapping(){
+        return snapping;
+    }
+
+    @Override
+    public String toString(){
+        return String.format(Locale.ROOT, "scale %s, area tolerance %s, relative tolerance %s, snapping %s",
+                scale, areaTolerance, relativeTolerance, snapping ? "on" : "off");
+    }
+}
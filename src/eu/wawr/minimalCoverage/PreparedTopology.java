@@ -0,0 +1,82 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.operation.overlay.OverlayOp;
+
+/**
+ * A mask geometry prepared once for repeated predicate checks against many other geometries.
+ * Holds the precision-reduced mask and its validity, so neither is recomputed per check.
+ */
+public class PreparedTopology {
+
+    private final TopologyHelper topology;
+    private final Geometry geometry;
+    private final Geometry reducedGeometry;
+    private final PreparedGeometry preparedGeometry;
+    private Boolean valid;
+
+    public PreparedTopology(TopologyHelper topology, Geometry geometry){
+        this(topology, geometry, topology.Reduce(geometry));
+    }
+
+    public PreparedTopology(TopologyHelper topology, Geometry geometry, Geometry reducedGeometry){
+        this.topology = topology;
+        this.geometry = geometry;
+        this.reducedGeometry = reducedGeometry;
+        this.preparedGeometry = PreparedGeometryFactory.prepare(geometry);
+    }
+
+    public Geometry Geometry(){
+        return geometry;
+    }
+
+    public Geometry ReducedGeometry(){
+        return reducedGeometry;
+    }
+
+    public boolean IsValid(){
+        if(valid == null){
+            valid = TopologyHelper.Validate(geometry);
+        }
+        return valid;
+    }
+
+    public boolean Covers(Geometry object, Geometry reducedObject){
+        if(preparedGeometry.covers(object)){
+            return true;
+        }
+        return topology.IsNegligible(
+                topology.Overlay(reducedObject, reducedGeometry, OverlayOp.DIFFERENCE), reducedObject);
+    }
+
+    public Geometry Intersection(Geometry reducedObject){
+        return topology.Reduce(topology.Overlay(reducedObject, reducedGeometry, OverlayOp.INTERSECTION));
+    }
+
+    public Geometry Difference(Geometry reducedObject){
+        return topology.Reduce(topology.Overlay(reducedObject, reducedGeometry, OverlayOp.DIFFERENCE));
+    }
+
+    public boolean Contains(Geometry object){
+        return preparedGeometry.contains(object);
+    }
+
+    public boolean IsWithin(Geometry object){
+        return preparedGeometry.within(object);
+    }
+
+    public boolean Intersects(Geometry object){
+        return preparedGeometry.intersects(object);
+    }
+
+    public boolean IsDisjointOrTouching(Geometry object){
+        return !preparedGeometry.intersects(object) || preparedGeometry.touches(object);
+    }
+
+    public boolean IsEqual(Geometry object){
+        return topology.Equal(object, geometry);
+    }
+}
@@ -0,0 +1,303 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.*;
+
+/**
+ * Set cover instance over dense int ids. Pieces of the universe are numbered 0..PieceCount()-1,
+ * subsets 0..SubsetCount()-1, and every subset is a sorted array of the pieces it covers.
+ * Fixed subsets are part of every cover.
+ *
+ * By default every subset costs 1, every piece weighs 1 and all pieces must be covered. Subsets may
+ * be given costs, pieces weights (e.g. their areas), and the cover a target fraction of the total
+ * weight, in which case it is partial.
+ */
+public class SetCoverProblem {
+
+    private final IdInterner pieceIds = new IdInterner();
+    private final IdInterner subsetIds = new IdInterner();
+    private final int[][] subsets;
+    private final BitSet fixed = new BitSet();
+    private final Set<String> fixedWithoutPieces = new HashSet<>();
+    private int[][] coveringSubsets;
+    private Map<String, Double> costs;
+    private double[] subsetCosts;
+    private double[] pieceWeights;
+    private double totalWeight;
+    private double coverageTarget = 1;
+
+    /**
+     * @param universe ids of the pieces to cover
+     * @param subsets pieces covered by each subset, keyed by subset id
+     * @param fixedKeys ids of the subsets that must be part of the cover
+     */
+    public SetCoverProblem(Set<String> universe, Map<String, Set<String>> subsets, Set<String> fixedKeys){
+        for(String piece : universe){
+            pieceIds.Intern(piece);
+        }
+        this.subsets = new int[subsets.size()][];
+        for(Map.Entry<String, Set<String>> entry : subsets.entrySet()){
+            int subset = subsetIds.Intern(entry.getKey());
+            int[] pieces = new int[entry.getValue().size()];
+            int count = 0;
+            for(String piece : entry.getValue()){
+                int index = pieceIds.IndexOf(piece);
+                if(index >= 0){
+                    pieces[count++] = index;
+                }
+            }
+            pieces = Arrays.copyOf(pieces, count);
+            Arrays.sort(pieces);
+            this.subsets[subset] = pieces;
+        }
+        for(String key : fixedKeys){
+            int subset = subsetIds.IndexOf(key);
+            if(subset >= 0){
+                fixed.set(subset);
+            } else {
+                fixedWithoutPieces.add(key);
+            }
+        }
+    }
+
+    /**
+     * Costs of the subsets by id; subsets without a cost cost 1. Pass null for unit costs.
+     */
+    public void SetCosts(Map<String, Double> costs){
+        this.costs = costs;
+        if(costs == null){
+            subsetCosts = null;
+            return;
+        }
+        subsetCosts = new double[subsets.length];
+        for(int subset=0; subset<subsets.length; subset++){
+            subsetCosts[subset] = Cost(subsetIds.Get(subset));
+        }
+    }
+
+    /**
+     * Weights of the pieces by id; pieces without a weight weigh 0.
+     */
+    public void SetPieceWeights(Map<String, Double> weights){
+        pieceWeights = new double[PieceCount()];
+        totalWeight = 0;
+        for(int piece=0; piece<PieceCount(); piece++){
+            Double weight = weights.get(pieceIds.Get(piece));
+            pieceWeights[piece] = weight == null ? 0 : weight;
+            totalWeight += pieceWeights[piece];
+        }
+    }
+
+    /**
+     * Fraction of the total piece weight a cover has to reach, 1 by default.
+     */
+    public void SetCoverageTarget(double fraction){
+        coverageTarget = fraction;
+    }
+
+    public boolean IsWeighted(){
+        return costs != null;
+    }
+
+    public boolean IsPartial(){
+        return coverageTarget < 1;
+    }
+
+    public double Cost(int subset){
+        return subsetCosts == null ? 1 : subsetCosts[subset];
+    }
+
+    private double Cost(String subsetId){
+        Double cost = costs == null ? null : costs.get(subsetId);
+        return cost == null ? 1 : cost;
+    }
+
+    public double PieceWeight(int piece){
+        return pieceWeights == null ? 1 : pieceWeights[piece];
+    }
+
+    public double TotalWeight(){
+        return pieceWeights == null ? PieceCount() : totalWeight;
+    }
+
+    /** Piece weight a cover has to reach. */
+    public double TargetWeight(){
+        return TotalWeight() * coverageTarget;
+    }
+
+    /** Cost of the given subsets together with the fixed ids that do not cover any piece. */
+    public double Cost(BitSet selected){
+        double cost = 0;
+        for(String id : fixedWithoutPieces){
+            cost += Cost(id);
+        }
+        for(int subset = selected.nextSetBit(0); subset >= 0; subset = selected.nextSetBit(subset + 1)){
+            cost += Cost(subset);
+        }
+        return cost;
+    }
+
+    /** Weight of the pieces covered by the given subsets. */
+    public double CoveredWeight(BitSet selected){
+        boolean[] covered = new boolean[PieceCount()];
+        double weight = 0;
+        for(int subset = selected.nextSetBit(0); subset >= 0; subset = selected.nextSetBit(subset + 1)){
+            for(int piece : subsets[subset]){
+                if(!covered[piece]){
+                    covered[piece] = true;
+                    weight += PieceWeight(piece);
+                }
+            }
+        }
+        return weight;
+    }
+
+    public int PieceCount(){
+        return pieceIds.Size();
+    }
+
+    public int SubsetCount(){
+        return subsets.length;
+    }
+
+    public int[] Subset(int subset){
+        return subsets[subset];
+    }
+
+    /** Subsets covering the piece, in ascending order. */
+    public int[] CoveringSubsets(int piece){
+        if(coveringSubsets == null){
+            int[] counts = new int[PieceCount()];
+            for(int[] subset : subsets){
+                for(int p : subset){
+                    counts[p]++;
+                }
+            }
+            coveringSubsets = new int[PieceCount()][];
+            for(int p=0; p<counts.length; p++){
+                coveringSubsets[p] = new int[counts[p]];
+                counts[p] = 0;
+            }
+            for(int subset=0; subset<subsets.length; subset++){
+                for(int p : subsets[subset]){
+                    coveringSubsets[p][counts[p]++] = subset;
+                }
+            }
+        }
+        return coveringSubsets[piece];
+    }
+
+    /**
+     * Lower bound on the size of any cover. Pieces whose covering subsets are pairwise disjoint
+     * each need a subset of their own, so a greedy packing of such pieces gives a bound, as does
+     * the number of uncovered pieces divided by the largest subset. A partial cover only needs as
+     * many subsets as it takes the heaviest ones to make up the missing weight. Pieces are packed in
+     * the order of their covering subsets alone, so the bound does not depend on how the pieces,
+     * whose ids are generated anew on every run, are numbered.
+     */
+    public int LowerBound(){
+        if(IsPartial()){
+            return PartialLowerBound();
+        }
+        boolean[] covered = new boolean[PieceCount()];
+        int fixedCount = fixed.cardinality() + FixedWithoutPiecesCount();
+        int largestSubset = 0;
+        for(int subset=0; subset<subsets.length; subset++){
+            if(fixed.get(subset)){
+                for(int piece : subsets[subset]){
+                    covered[piece] = true;
+                }
+            }
+            largestSubset = Math.max(largestSubset, subsets[subset].length);
+        }
+        Integer[] pieces = new Integer[PieceCount()];
+        int uncoveredCount = 0;
+        for(int piece=0; piece<PieceCount(); piece++){
+            if(!covered[piece]){
+                pieces[uncoveredCount++] = piece;
+            }
+        }
+        if(uncoveredCount == 0){
+            return fixedCount;
+        }
+        Arrays.sort(pieces, 0, uncoveredCount, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer piece, Integer otherPiece) {
+                int[] covering = CoveringSubsets(piece);
+                int[] otherCovering = CoveringSubsets(otherPiece);
+                if(covering.length != otherCovering.length){
+                    return Integer.compare(covering.length, otherCovering.length);
+                }
+                // pieces with the same covering subsets are interchangeable in the packing
+                for(int i=0; i<covering.length; i++){
+                    if(covering[i] != otherCovering[i]){
+                        return Integer.compare(covering[i], otherCovering[i]);
+                    }
+                }
+                return 0;
+            }
+        });
+        boolean[] used = new boolean[subsets.length];
+        int packed = 0;
+        for(int i=0; i<uncoveredCount; i++){
+            int[] covering = CoveringSubsets(pieces[i]);
+            boolean disjoint = true;
+            for(int subset : covering){
+                disjoint &= !used[subset];
+            }
+            if(disjoint){
+                packed++;
+                for(int subset : covering){
+                    used[subset] = true;
+                }
+            }
+        }
+        int sizeBound = (uncoveredCount + largestSubset - 1) / largestSubset;
+        return fixedCount + Math.max(packed, sizeBound);
+    }
+
+    private int PartialLowerBound(){
+        boolean[] covered = new boolean[PieceCount()];
+        for(int subset = fixed.nextSetBit(0); subset >= 0; subset = fixed.nextSetBit(subset + 1)){
+            for(int piece : subsets[subset]){
+                covered[piece] = true;
+            }
+        }
+        double missingWeight = TargetWeight() - CoveredWeight(fixed);
+        double[] subsetWeights = new double[subsets.length];
+        for(int subset=0; subset<subsets.length; subset++){
+            for(int piece : subsets[subset]){
+                subsetWeights[subset] += covered[piece] ? 0 : PieceWeight(piece);
+            }
+        }
+        Arrays.sort(subsetWeights);
+        int count = fixed.cardinality() + FixedWithoutPiecesCount();
+        for(int i=subsetWeights.length-1; i>=0 && missingWeight > 0 && subsetWeights[i] > 0; i--){
+            missingWeight -= subsetWeights[i];
+            count++;
+        }
+        return count;
+    }
+
+    public boolean IsFixed(int subset){
+        return fixed.get(subset);
+    }
+
+    /** Number of fixed subset ids that do not cover any piece; they are part of every cover. */
+    public int FixedWithoutPiecesCount(){
+        return fixedWithoutPieces.size();
+    }
+
+    public String SubsetId(int subset){
+        return subsetIds.Get(subset);
+    }
+
+    /** Ids of the given subsets together with the fixed ids that do not cover any piece. */
+    public Set<String> SubsetIds(BitSet selected){
+        Set<String> ids = new HashSet<>(fixedWithoutPieces);
+        for(int subset = selected.nextSetBit(0); subset >= 0; subset = selected.nextSetBit(subset + 1)){
+            ids.add(subsetIds.Get(subset));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,105 @@
+package eu.wawr.minimalCoverage;
+
+
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Subsets chosen by a SetCoverSolver, together with a lower bound on the size of an optimal cover.
+ * Sizes and bounds include the fixed subsets. The cost and the covered share of the piece weight
+ * are those of the problem, i.e. the size and 1 unless it has costs or is partial. For weighted
+ * problems the bound is on the size of any cover, so it never proves the cost optimal.
+ */
+public class SetCoverSolution {
+
+    private final BitSet selected;
+    private final Set<String> ids;
+    private final int lowerBound;
+    private final double cost;
+    private final double coveredWeight;
+    private final double totalWeight;
+    private final boolean weighted;
+
+    public SetCoverSolution(SetCoverProblem problem, BitSet selected, int lowerBound){
+        this.selected = selected;
+        this.ids = problem.SubsetIds(selected);
+        this.lowerBound = Math.min(lowerBound, ids.size());
+        cost = problem.Cost(selected);
+        coveredWeight = problem.CoveredWeight(selected);
+        totalWeight = problem.TotalWeight();
+        weighted = problem.IsWeighted();
+    }
+
+    /**
+     * Solution that was not solved as a single problem, e.g. merged from several tiles.
+     */
+    public SetCoverSolution(Set<String> ids, int lowerBound){
+        this(ids, lowerBound, ids.size(), 1, 1, false);
+    }
+
+    public SetCoverSolution(Set<String> ids, int lowerBound, double cost, double coveredWeight, double totalWeight,
+                            boolean weighted){
+        this.selected = null;
+        this.ids = ids;
+        this.lowerBound = Math.min(lowerBound, ids.size());
+        this.cost = cost;
+        this.coveredWeight = coveredWeight;
+        this.totalWeight = totalWeight;
+        this.weighted = weighted;
+    }
+
+    /** Selected subsets of the solved problem, or null if the solution was not solved as one problem. */
+    public BitSet Selected(){
+        return selected;
+    }
+
+    public Set<String> Ids(){
+        return ids;
+    }
+
+    public int Size(){
+        return ids.size();
+    }
+
+    public int LowerBound(){
+        return lowerBound;
+    }
+
+    public double Cost(){
+        return cost;
+    }
+
+    public double CoveredWeight(){
+        return coveredWeight;
+    }
+
+    public double TotalWeight(){
+        return totalWeight;
+    }
+
+    /** Covered share of the total piece weight, 1 if there is nothing to cover. */
+    public double Coverage(){
+        return totalWeight > 0 ? Math.min(1, coveredWeight / totalWeight) : 1;
+    }
+
+    public boolean IsWeighted(){
+        return weighted;
+    }
+
+    public boolean IsOptimal(){
+        return lowerBound == ids.size() && !weighted;
+    }
+
+    @Override
+    public String toString(){
+        String text = "size " + Size() + ", lower bound " + LowerBound() + (IsOptimal() ? " (optimal)" : "");
+        if(weighted){
+            text += String.format(Locale.ROOT, ", cost %.6g", cost);
+        }
+        if(Coverage() < 1){
+            text += String.format(Locale.ROOT, ", coverage %.4f%%", 100 * Coverage());
+        }
+        return text;
+    }
+}
@@ -0,0 +1,9 @@
+package eu.wawr.minimalCoverage;
+
+/**
+ * Picks the subsets of a SetCoverProblem that together cover all of its pieces.
+ */
+public interface SetCoverSolver {
+
+    SetCoverSolution Solve(SetCoverProblem problem);
+}
@@ -0,0 +1,135 @@
+package eu.wawr.minimalCoverage;
+
+
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the features to a new shapefile, appending them through a single transaction that is
+ * committed when the writer is closed.
+ */
+public class ShapefileSolutionWriter implements SolutionWriter {
+
+    static final String rangeIdAttribute = "range_id";
+
+    private final ShapefileDataStore dataStore;
+    private final Transaction transaction = new DefaultTransaction("write");
+    private final FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+    private final List<Integer> attributeIndexes = new ArrayList<>();
+    private final boolean rangeIds;
+    private long count;
+
+    public ShapefileSolutionWriter(File file, SimpleFeatureType elementType, boolean rangeIds) throws IOException{
+        this.rangeIds = rangeIds;
+        Map<String, Serializable> parameters = new HashMap<>();
+        parameters.put("url", file.toURI().toURL());
+        parameters.put("create spatial index", Boolean.TRUE);
+        dataStore = (ShapefileDataStore)new ShapefileDataStoreFactory().createNewDataStore(parameters);
+        try{
+            dataStore.createSchema(MakeType(elementType.getTypeName(), elementType, rangeIds));
+            writer = dataStore.getFeatureWriterAppend(dataStore.getTypeNames()[0], transaction);
+        } catch(IOException | RuntimeException e){
+            transaction.close();
+            dataStore.dispose();
+            throw e;
+        }
+        // shapefiles put the geometry first and may shorten attribute names, so attributes are copied by position
+        for(int i=0; i<elementType.getAttributeCount(); i++){
+            if(!(elementType.getDescriptor(i) instanceof GeometryDescriptor)){
+                attributeIndexes.add(i);
+            }
+        }
+    }
+
+    /**
+     * Type with the geometry and attributes of the elements, plus a range_id attribute if asked for.
+     */
+    static SimpleFeatureType MakeType(String name, SimpleFeatureType elementType, boolean rangeIds){
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName(name);
+        GeometryDescriptor geometryDescriptor = elementType.getGeometryDescriptor();
+        builder.setCRS(geometryDescriptor.getCoordinateReferenceSystem());
+        for(AttributeDescriptor descriptor : elementType.getAttributeDescriptors()){
+            builder.add(descriptor);
+        }
+        builder.setDefaultGeometry(geometryDescriptor.getLocalName());
+        if(rangeIds){
+            builder.add(rangeIdAttribute, String.class);
+        }
+        return builder.buildFeatureType();
+    }
+
+    @Override
+    public void Write(SimpleFeatureCollection features, String rangeId) throws IOException{
+        SimpleFeatureIterator iterator = features.features();
+        try{
+            while(iterator.hasNext()){
+                SimpleFeature feature = iterator.next();
+                SimpleFeature written = writer.next();
+                written.setDefaultGeometry(feature.getDefaultGeometry());
+                int attribute = 1;
+                for(int i : attributeIndexes){
+                    written.setAttribute(attribute++, feature.getAttribute(i));
+                }
+                if(rangeIds){
+                    written.setAttribute(attribute, rangeId);
+                }
+                writer.write();
+                count++;
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Override
+    public long Count(){
+        return count;
+    }
+
+    @Override
+    public void Close() throws IOException{
+        try{
+            writer.close();
+            transaction.commit();
+        } finally {
+            transaction.close();
+            dataStore.dispose();
+        }
+    }
+
+    @Override
+    public void Discard(){
+        try{
+            writer.close();
+            transaction.rollback();
+        } catch(IOException e){
+            // the output is abandoned anyway
+        } finally {
+            try{
+                transaction.close();
+            } catch(IOException e){
+                // nothing left to release
+            }
+            dataStore.dispose();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package eu.wawr.minimalCoverage;
+
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+
+import java.io.IOException;
+
+/**
+ * Output of the selected elements. Features are written one by one as they are read, in the schema and
+ * coordinate reference system of the elements, so writing costs time proportional to the size of the
+ * cover rather than of the elements layer.
+ */
+public interface SolutionWriter {
+
+    /**
+     * Writes the features. The range id is written with them if the writer was opened with range ids,
+     * and ignored otherwise.
+     */
+    void Write(SimpleFeatureCollection features, String rangeId) throws IOException;
+
+    /** Number of features written so far. */
+    long Count();
+
+    /** Completes the output. */
+    void Close() throws IOException;
+
+    /** Abandons the output after a failure; what was written may be incomplete. */
+    void Discard();
+}
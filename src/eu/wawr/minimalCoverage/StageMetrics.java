@@ -0,0 +1,65 @@
+package eu.wawr.minimalCoverage;
+
+/**
+ * Measurements of one stage of a coverage run: wall time, number of items going in and out, and the
+ * TopologyHelper overlays, reductions and overlay failures counted while it ran. Every run counts
+ * on its own, so stages of other runs going on at the same time are not included.
+ */
+public class StageMetrics {
+
+    private final String name;
+    private final long nanos;
+    private final long inputCount;
+    private final long outputCount;
+    private final long overlayCount;
+    private final long reduceCount;
+    private final long overlayFailureCount;
+    private final Throwable failure;
+
+    public StageMetrics(String name, long nanos, long inputCount, long outputCount, long overlayCount,
+                        long reduceCount, long overlayFailureCount, Throwable failure){
+        this.name = name;
+        this.nanos = nanos;
+        this.inputCount = inputCount;
+        this.outputCount = outputCount;
+        this.overlayCount = overlayCount;
+        this.reduceCount = reduceCount;
+        this.overlayFailureCount = overlayFailureCount;
+        this.failure = failure;
+    }
+
+    public String Name(){
+        return name;
+    }
+
+    public long Nanos(){
+        return nanos;
+    }
+
+    /** Number of items the stage started from, or -1 if it failed. */
+    public long InputCount(){
+        return inputCount;
+    }
+
+    /** Number of items the stage produced, or -1 if it failed. */
+    public long OutputCount(){
+        return outputCount;
+    }
+
+    public long OverlayCount(){
+        return overlayCount;
+    }
+
+    public long ReduceCount(){
+        return reduceCount;
+    }
+
+    public long OverlayFailureCount(){
+        return overlayFailureCount;
+    }
+
+    /** Exception the stage failed with, or null if it completed. */
+    public Throwable Failure(){
+        return failure;
+    }
+}
@@ -0,0 +1,65 @@
+package eu.wawr.minimalCoverage;
+
+/**
+ * Times consecutive stages of one run and reports them to a CoverageMetrics listener, with the
+ * operations counted by the run's TopologyHelper. Without a listener every call returns immediately.
+ */
+class StageRecorder {
+
+    private final CoverageMetrics metrics;
+    private final TopologyHelper topology;
+    private String stage;
+    private long start;
+    private long overlayCount;
+    private long reduceCount;
+    private long failureCount;
+
+    /**
+     * Recorder for stages that do no topology operations, whose counts are reported as 0.
+     */
+    StageRecorder(CoverageMetrics metrics){
+        this(metrics, null);
+    }
+
+    StageRecorder(CoverageMetrics metrics, TopologyHelper topology){
+        this.metrics = metrics;
+        this.topology = topology;
+    }
+
+    void Start(String stage){
+        if(metrics == null){
+            return;
+        }
+        this.stage = stage;
+        if(topology != null){
+            overlayCount = topology.OverlayCount();
+            reduceCount = topology.ReduceCount();
+            failureCount = topology.FailureCount();
+        }
+        start = System.nanoTime();
+    }
+
+    void End(long inputCount, long outputCount){
+        Report(inputCount, outputCount, null);
+    }
+
+    /**
+     * Reports the stage in progress, if any, as failed.
+     */
+    void Fail(Throwable failure){
+        Report(-1, -1, failure);
+    }
+
+    private void Report(long inputCount, long outputCount, Throwable failure){
+        if(metrics == null || stage == null){
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.StageCompleted(new StageMetrics(stage, nanos, inputCount, outputCount,
+                topology == null ? 0 : topology.OverlayCount() - overlayCount,
+                topology == null ? 0 : topology.ReduceCount() - reduceCount,
+                topology == null ? 0 : topology.FailureCount() - failureCount,
+                failure));
+        stage = null;
+    }
+}
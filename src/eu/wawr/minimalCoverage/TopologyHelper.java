@@ -3,52 +3,137 @@ package eu.wawr.minimalCoverage;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.operation.overlay.OverlayOp;
+import com.vividsolutions.jts.operation.overlay.snap.SnapOverlayOp;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
 import com.vividsolutions.jts.precision.GeometryPrecisionReducer;
+import org.opengis.feature.simple.SimpleFeature;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Precision reduction, overlays and tolerant comparisons under one PrecisionPolicy. Instances are
+ * thread-safe, so layers with different policies can be processed concurrently. Reduced geometries
+ * cached in feature user data are kept per grid scale, so they are shared by all instances with the
+ * same scale.
+ */
 public class TopologyHelper {
 
-    private static final double tolerance = 1/10000000000.0;
+    private static final String reducedGeometryKey = "reducedGeometry";
+    private static final String validKey = "valid";
+    private static final double coarserScaleFactor = 1/10.0;
+
+    private final PrecisionPolicy policy;
+    private final PrecisionModel precisionModel;
+    private final PrecisionModel coarserPrecisionModel;
+    private final String reducedKey;
+    private final boolean counting;
+    private final LongAdder overlayCount = new LongAdder();
+    private final LongAdder reduceCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+
+    public TopologyHelper(PrecisionPolicy policy){
+        this(policy, false);
+    }
 
-    public static Boolean IsCovered(Geometry object, Geometry mask){
+    private TopologyHelper(PrecisionPolicy policy, boolean counting){
+        this.policy = policy;
+        this.counting = counting;
+        precisionModel = new PrecisionModel(policy.Scale());
+        coarserPrecisionModel = new PrecisionModel(policy.Scale() * coarserScaleFactor);
+        reducedKey = reducedGeometryKey + ";" + policy.Scale();
+    }
+
+    public PrecisionPolicy Policy(){
+        return policy;
+    }
+
+    public Boolean IsCovered(Geometry object, Geometry mask){
         if(object.coveredBy(mask)){
             return true;
         }
-        Geometry difference = Reduce(Reduce(object).difference(Reduce(mask)));
-        if(difference.getArea() < tolerance){
-            return true;
-        }
-        return false;
+        return IsNegligible(Overlay(Reduce(object), Reduce(mask), OverlayOp.DIFFERENCE), object);
     }
 
-    public static Geometry Difference(Geometry thisGeometry, Geometry otherGeometry){
+    public Geometry Difference(Geometry thisGeometry, Geometry otherGeometry){
         thisGeometry = Reduce(thisGeometry);
         otherGeometry = Reduce(otherGeometry);
-        Geometry result = thisGeometry.difference(otherGeometry);
+        Geometry result = Overlay(thisGeometry, otherGeometry, OverlayOp.DIFFERENCE);
         return Reduce(result);
     }
 
-    public static Geometry SymDifference(Geometry thisGeometry, Geometry otherGeometry){
+    public Geometry SymDifference(Geometry thisGeometry, Geometry otherGeometry){
         thisGeometry = Reduce(thisGeometry);
         otherGeometry = Reduce(otherGeometry);
-        Geometry result = thisGeometry.symDifference(otherGeometry);
+        Geometry result = Overlay(thisGeometry, otherGeometry, OverlayOp.SYMDIFFERENCE);
         return Reduce(result);
     }
-    public static Geometry Intersection(Geometry thisGeometry, Geometry otherGeometry){
+    public Geometry Intersection(Geometry thisGeometry, Geometry otherGeometry){
         thisGeometry = Reduce(thisGeometry);
         otherGeometry = Reduce(otherGeometry);
-        Geometry result = thisGeometry.intersection(otherGeometry);
+        Geometry result = Overlay(thisGeometry, otherGeometry, OverlayOp.INTERSECTION);
         return Reduce(result);
     }
 
-    public static Geometry Union(Geometry thisGeometry, Geometry otherGeometry){
+    public Geometry Union(Geometry thisGeometry, Geometry otherGeometry){
         thisGeometry = Reduce(thisGeometry);
         otherGeometry = Reduce(otherGeometry);
-        Geometry result = thisGeometry.union(otherGeometry);
+        Geometry result = Overlay(thisGeometry, otherGeometry, OverlayOp.UNION);
         return Reduce(result);
     }
 
-    public static Geometry Reduce(Geometry geometry){
-        return GeometryPrecisionReducer.reduce(geometry, new PrecisionModel(100000000000.0));
+    public Geometry Reduce(Geometry geometry){
+        if(counting){
+            reduceCount.increment();
+        }
+        return GeometryPrecisionReducer.reduce(geometry, precisionModel);
+    }
+
+    /**
+     * Reduced default geometry of the feature, computed on first use and kept in its user data.
+     */
+    public Geometry Reduce(SimpleFeature feature){
+        Geometry reducedGeometry = (Geometry)feature.getUserData().get(reducedKey);
+        if(reducedGeometry == null){
+            reducedGeometry = Reduce((Geometry)feature.getDefaultGeometry());
+            feature.getUserData().put(reducedKey, reducedGeometry);
+        }
+        return reducedGeometry;
+    }
+
+    /**
+     * Marks the feature's default geometry as already reduced, e.g. when it is the result of an overlay here.
+     */
+    public void SetReduced(SimpleFeature feature){
+        feature.getUserData().put(reducedKey, feature.getDefaultGeometry());
+    }
+
+    /**
+     * Stores the reduced default geometry of the feature, e.g. when it was reduced beforehand.
+     */
+    public void SetReduced(SimpleFeature feature, Geometry reducedGeometry){
+        feature.getUserData().put(reducedKey, reducedGeometry);
+    }
+
+    /**
+     * Reduced default geometry kept in the feature's user data, or null. Unlike Reduce, never writes
+     * to the feature.
+     */
+    public Geometry GetReduced(SimpleFeature feature){
+        return (Geometry)feature.getUserData().get(reducedKey);
+    }
+
+    public static boolean Validate(SimpleFeature feature){
+        Boolean valid = (Boolean)feature.getUserData().get(validKey);
+        if(valid == null){
+            valid = Validate((Geometry)feature.getDefaultGeometry());
+            feature.getUserData().put(validKey, valid);
+        }
+        return valid;
     }
 
     public static boolean Validate(Geometry geometry){
@@ -56,10 +141,124 @@ public class TopologyHelper {
         return (type == "Polygon" || type == "MultiPolygon") && geometry.isValid();
     }
 
-    public static boolean Equal(Geometry thisGeometry, Geometry otherGeometry){
+    /** Whether the geometry is below the absolute area tolerance. */
+    public boolean IsNegligible(Geometry geometry){
+        return Reduce(geometry).getArea() < policy.AreaTolerance();
+    }
+
+    /** Whether the geometry is below the area tolerance for comparisons with the reference piece. */
+    public boolean IsNegligible(Geometry geometry, Geometry reference){
+        return Reduce(geometry).getArea() < GetAreaTolerance(reference.getArea());
+    }
+
+    public boolean Equal(Geometry thisGeometry, Geometry otherGeometry){
         if(thisGeometry.equals(otherGeometry)){
             return true;
         }
-        return thisGeometry.symDifference(otherGeometry).getArea() < tolerance;
+        return Overlay(thisGeometry, otherGeometry, OverlayOp.SYMDIFFERENCE).getArea()
+                < GetAreaTolerance(Math.max(thisGeometry.getArea(), otherGeometry.getArea()));
+    }
+
+    private double GetAreaTolerance(double area){
+        return Math.max(policy.AreaTolerance(), policy.RelativeTolerance() * area);
+    }
+
+    /**
+     * Binary overlay of the two geometries, as by the Geometry method for the OverlayOp code. All
+     * overlays of the package go through here, so that they and their TopologyExceptions are counted.
+     * When the policy snaps, a failed overlay is retried with the inputs snapped to each other, then
+     * with both rounded to a ten times coarser grid, and the original exception is only thrown if all
+     * attempts fail.
+     */
+    Geometry Overlay(Geometry geometry, Geometry otherGeometry, int opCode){
+        if(counting){
+            overlayCount.increment();
+        }
+        try{
+            return ApplyOverlay(geometry, otherGeometry, opCode);
+        } catch(TopologyException e){
+            if(counting){
+                failureCount.increment();
+            }
+            if(!policy.IsSnapping()){
+                throw e;
+            }
+            try{
+                return SnapOverlayOp.overlayOp(geometry, otherGeometry, opCode);
+            } catch(TopologyException snapException){
+                try{
+                    return ApplyOverlay(Coarsen(geometry), Coarsen(otherGeometry), opCode);
+                } catch(TopologyException coarseException){
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static Geometry ApplyOverlay(Geometry geometry, Geometry otherGeometry, int opCode){
+        switch(opCode){
+            case OverlayOp.INTERSECTION:
+                return geometry.intersection(otherGeometry);
+            case OverlayOp.UNION:
+                return geometry.union(otherGeometry);
+            case OverlayOp.DIFFERENCE:
+                return geometry.difference(otherGeometry);
+            default:
+                return geometry.symDifference(otherGeometry);
+        }
+    }
+
+    private Geometry Coarsen(Geometry geometry){
+        return GeometryPrecisionReducer.reduce(geometry, coarserPrecisionModel);
+    }
+
+    /**
+     * Cascaded union of the polygonal geometries, counted as one overlay. When the policy snaps, a
+     * failed union is retried on the geometries rounded to a ten times coarser grid.
+     */
+    Geometry Union(Collection<Geometry> geometries){
+        if(counting){
+            overlayCount.increment();
+        }
+        try{
+            return CascadedPolygonUnion.union(geometries);
+        } catch(TopologyException e){
+            if(counting){
+                failureCount.increment();
+            }
+            if(!policy.IsSnapping()){
+                throw e;
+            }
+            List<Geometry> coarseGeometries = new ArrayList<>();
+            for(Geometry geometry : geometries){
+                coarseGeometries.add(Coarsen(geometry));
+            }
+            try{
+                return CascadedPolygonUnion.union(coarseGeometries);
+            } catch(TopologyException coarseException){
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Helper with the same policy that counts its own overlays, reductions and overlay failures, e.g.
+     * for the stages of a single run. Failures are counted whether or not a retry recovers from them.
+     * Other helpers do not count at all.
+     */
+    public TopologyHelper Counting(){
+        return new TopologyHelper(policy, true);
+    }
+
+    public long OverlayCount(){
+        return overlayCount.sum();
+    }
+
+    public long ReduceCount(){
+        return reduceCount.sum();
+    }
+
+    public long FailureCount(){
+        return failureCount.sum();
     }
 }
@@ -0,0 +1,68 @@
+package eu.wawr.minimalCoverage;
+
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes one line per feature: the feature id, the range id if asked for, and the geometry as
+ * hexadecimal WKB, separated by tabs. Meant for tools that read geometries line by line.
+ */
+public class WkbLinesSolutionWriter implements SolutionWriter {
+
+    private final Writer output;
+    private final WKBWriter wkbWriter = new WKBWriter();
+    private final boolean rangeIds;
+    private long count;
+
+    public WkbLinesSolutionWriter(File file, boolean rangeIds) throws IOException{
+        this.rangeIds = rangeIds;
+        output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void Write(SimpleFeatureCollection features, String rangeId) throws IOException{
+        SimpleFeatureIterator iterator = features.features();
+        try{
+            while(iterator.hasNext()){
+                SimpleFeature feature = iterator.next();
+                output.write(feature.getID());
+                output.write('\t');
+                if(rangeIds){
+                    output.write(rangeId);
+                    output.write('\t');
+                }
+                output.write(WKBWriter.toHex(wkbWriter.write((Geometry)feature.getDefaultGeometry())));
+                output.write('\n');
+                count++;
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Override
+    public long Count(){
+        return count;
+    }
+
+    @Override
+    public void Close() throws IOException{
+        output.close();
+    }
+
+    @Override
+    public void Discard(){
+        try{
+            output.close();
+        } catch(IOException e){
+            // the output is abandoned anyway
+        }
+    }
+}